@@ -0,0 +1,62 @@
+package com.fk.ppowershell.benchmarks;
+
+import com.fk.ppowershell.Constant;
+import com.fk.ppowershell.FrameReader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Reading one framed output with the byte-level reader shared by the three modes:
+ collected as the payload, or streamed line by line as with a line sink
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FrameReaderBenchmark {
+    @Param({"1024", "65536", "1048576", "104857600"})
+    public int outputSize;
+    private FrameReader reader;
+    private byte[] endMarker;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        reader = new FrameReader(Outputs.cycling(new byte[0], Outputs.frame(outputSize, null, "psscript_1")));
+        endMarker = reader.encode(Constant.END_SCRIPT_STRING);
+    }
+
+    @Benchmark
+    public String takePayload() throws IOException {
+        while (reader.nextLine() && !reader.lineEquals(endMarker)) {
+            reader.keepLine();
+        }
+        reader.nextLine();
+        return reader.takePayload();
+    }
+
+    @Benchmark
+    public void streamLines(Blackhole blackhole) throws IOException {
+        while (reader.nextLine() && !reader.lineEquals(endMarker)) {
+            blackhole.consume(reader.lineView());
+        }
+        reader.nextLine();
+        reader.discardPayload();
+    }
+
+    //Framing detection alone: every line is compared with the marker and dropped
+    @Benchmark
+    public int scanMarkers() throws IOException {
+        int lines = 0;
+        while (reader.nextLine() && !reader.lineEquals(endMarker)) {
+            lines++;
+        }
+        reader.nextLine();
+        reader.discardPayload();
+        return lines;
+    }
+}
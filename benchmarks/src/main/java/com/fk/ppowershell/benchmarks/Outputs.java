@@ -0,0 +1,242 @@
+package com.fk.ppowershell.benchmarks;
+
+import com.fk.ppowershell.Constant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ In-memory PowerShell output for the benchmarks: table rows like the ones of Get-Process,
+ framed by the end marker and an identity like the real processes write them
+ */
+public final class Outputs {
+    public static final String PID_LINE = "4242\r\n";
+    private static final String ROW = "    412      27    12345      23456       1.23   %5d   1 pwsh-%05d                                ";
+
+    private Outputs() {
+    }
+
+    //About size bytes of output rows, each terminated by CRLF
+    public static String rows(int size) {
+        StringBuilder rows = new StringBuilder(size + 128);
+        int i = 0;
+        while (rows.length() < size) {
+            rows.append(String.format(ROW, i % 100000, i % 100000)).append("\r\n");
+            i++;
+        }
+        return rows.toString();
+    }
+
+    //The output of one script: start marker and identity if given, rows, end marker and identity if given
+    public static byte[] frame(int size, String startIdentity, String endIdentity) {
+        StringBuilder frame = new StringBuilder(size + 256);
+        if (startIdentity != null) {
+            frame.append(Constant.START_SCRIPT_STRING).append("\r\n").append(startIdentity).append("\r\n");
+        }
+        frame.append(rows(size)).append(Constant.END_SCRIPT_STRING).append("\r\n");
+        if (endIdentity != null) {
+            frame.append(endIdentity).append("\r\n");
+        }
+        return frame.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] concat(byte[] first, byte[] second) {
+        byte[] all = new byte[first.length + second.length];
+        System.arraycopy(first, 0, all, 0, first.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
+    }
+
+    /**
+     * A stream returning the prefix once, then the frame over and over, in reads of at most 64 KB
+     * like a pipe would return them
+     */
+    public static InputStream cycling(byte[] prefix, byte[] frame) {
+        return new InputStream() {
+            private byte[] current = prefix.length > 0 ? prefix : frame;
+            private int position;
+
+            @Override
+            public int read() {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position == current.length) {
+                    current = frame;
+                    position = 0;
+                }
+                int count = Math.min(Math.min(len, 65536), current.length - position);
+                System.arraycopy(current, position, b, off, count);
+                position += count;
+                return count;
+            }
+        };
+    }
+
+    /**
+     * A stream returning the prefix, then the frame once for every {@link GatedStream#release()},
+     * blocking in between like the output of an idle process
+     */
+    public static GatedStream gated(byte[] prefix, byte[] frame) {
+        return new GatedStream(prefix, frame);
+    }
+
+    public static final class GatedStream extends InputStream {
+        private final byte[] frame;
+        private final Semaphore frames = new Semaphore(0);
+        private byte[] current;
+        private int position;
+        private volatile boolean closed;
+
+        private GatedStream(byte[] prefix, byte[] frame) {
+            this.frame = frame;
+            this.current = prefix;
+        }
+
+        public void release() {
+            frames.release();
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position == current.length) {
+                try {
+                    frames.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+                if (closed) {
+                    return -1;
+                }
+                current = frame;
+                position = 0;
+            }
+            int count = Math.min(Math.min(len, 65536), current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            frames.release();
+        }
+    }
+
+    //Creates a session object without starting a process, its fields are then set by the benchmark
+    public static <T> T newInstance(Class<T> type) throws ReflectiveOperationException {
+        Constructor<T> constructor = type.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    public static void setField(Object target, String name, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * A process answering the startup handshake, then whose output is the given stream.
+     * Its input is discarded once the handshake nonce has been written
+     */
+    public static Process process(InputStream output) {
+        CompletableFuture<byte[]> nonce = new CompletableFuture<>();
+        InputStream answered = new InputStream() {
+            private byte[] answer;
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (answer == null) {
+                    answer = nonce.join();
+                }
+                if (position == answer.length) {
+                    return output.read(b, off, len);
+                }
+                int count = Math.min(len, answer.length - position);
+                System.arraycopy(answer, position, b, off, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                output.close();
+            }
+        };
+        OutputStream input = new OutputStream() {
+            private final StringBuilder line = new StringBuilder();
+
+            @Override
+            public void write(int b) {
+                if (nonce.isDone()) {
+                    return;
+                }
+                if (b != '\n') {
+                    line.append((char) b);
+                    return;
+                }
+                //The nonce is written as a string literal, its value is the answer
+                String command = line.toString().trim();
+                line.setLength(0);
+                if (command.startsWith("'--PPS-READY-")) {
+                    nonce.complete((command.substring(1, command.length() - 1) + "\r\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        };
+        return new Process() {
+            @Override
+            public OutputStream getOutputStream() {
+                return input;
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return answered;
+            }
+
+            @Override
+            public InputStream getErrorStream() {
+                return answered;
+            }
+
+            @Override
+            public int waitFor() {
+                return 0;
+            }
+
+            @Override
+            public int exitValue() {
+                return 0;
+            }
+
+            @Override
+            public void destroy() {
+            }
+        };
+    }
+}
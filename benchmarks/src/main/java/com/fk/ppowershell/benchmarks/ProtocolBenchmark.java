@@ -0,0 +1,53 @@
+package com.fk.ppowershell.benchmarks;
+
+import com.fk.ppowershell.InlineScript;
+import com.fk.ppowershell.PSResponse;
+import com.fk.ppowershell.PowerShellCodepage;
+import com.fk.ppowershell.PreparedScript;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ The small per-call costs around a command: building the command line, binding parameters,
+ the code page lookup done at start and the response object
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    @Param({"64", "1024", "16384"})
+    public int scriptSize;
+    private String script;
+    private String output;
+    private final PreparedScript prepared = PreparedScript.prepare("Get-Service -Name $name | Select-Object -First $count", "name", "count");
+
+    @Setup
+    public void setUp() {
+        script = Outputs.rows(scriptSize);
+        output = Outputs.rows(1024);
+    }
+
+    @Benchmark
+    public String inlineCommand() {
+        return InlineScript.command(script, "-Verbose", "--END-JPOWERSHELL-SCRIPT--", "psscript_1");
+    }
+
+    @Benchmark
+    public String bindParameters() {
+        return prepared.bind("it's wuauserv", 10);
+    }
+
+    @Benchmark
+    public String codepageLookup() {
+        return PowerShellCodepage.getIdentifierByCodePageName("GBK");
+    }
+
+    @Benchmark
+    public PSResponse responseConstruction() {
+        return new PSResponse(output);
+    }
+}
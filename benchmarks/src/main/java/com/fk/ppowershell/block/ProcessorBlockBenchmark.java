@@ -0,0 +1,44 @@
+package com.fk.ppowershell.block;
+
+import com.fk.ppowershell.benchmarks.Outputs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ The blocking reader: the calling thread reads the output of its command up to the end marker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ProcessorBlockBenchmark {
+    @Param({"1024", "65536", "1048576", "104857600"})
+    public int outputSize;
+    private ProcessorBlock processor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        byte[] pid = Outputs.PID_LINE.getBytes();
+        PowerShellBlock powerShell = Outputs.newInstance(PowerShellBlock.class);
+        powerShell.p = Outputs.process(Outputs.cycling(pid, Outputs.frame(outputSize, null, null)));
+        powerShell.commandWriter = new PrintWriter(powerShell.p.getOutputStream(), true);
+        //Not initialized, the instance is created without its constructor
+        powerShell.startTimeout = 30;
+        processor = new ProcessorBlock(powerShell);
+    }
+
+    @Benchmark
+    public String process() {
+        return processor.process(null);
+    }
+
+    @Benchmark
+    public String processStreaming() {
+        return processor.process(line -> {
+        });
+    }
+}
@@ -0,0 +1,50 @@
+package com.fk.ppowershell.control;
+
+import com.fk.ppowershell.PSResponse;
+import com.fk.ppowershell.benchmarks.Outputs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ The control reader: the caller registers its command, the reader thread of the session
+ reads the output and completes the response, including the hand-off between the two threads
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ProcessorControlBenchmark {
+    private static final String IDENTITY = "psscript_1";
+    @Param({"1024", "65536", "1048576", "104857600"})
+    public int outputSize;
+    private ProcessorControl processor;
+    private Outputs.GatedStream output;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        output = Outputs.gated(Outputs.PID_LINE.getBytes(), Outputs.frame(outputSize, null, IDENTITY));
+        Process process = Outputs.process(output);
+        processor = new ProcessorControl(process, new PrintWriter(process.getOutputStream(), true), 30);
+        Thread reader = new Thread(processor, "benchmark-control-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        output.close();
+    }
+
+    @Benchmark
+    public PSResponse roundTrip() throws InterruptedException, ExecutionException {
+        CompletableFuture<PSResponse> response = processor.register(IDENTITY, null);
+        output.release();
+        return response.get();
+    }
+}
@@ -0,0 +1,49 @@
+package com.fk.ppowershell.control;
+
+import com.fk.ppowershell.InlineScript;
+import com.fk.ppowershell.benchmarks.Outputs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Sending a script through a temporary .ps1 file, written then deleted, compared with the in-band command
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptFileBenchmark {
+    @Param({"1024", "16384", "1048576"})
+    public int scriptSize;
+    private String script;
+    private PowerShellControl powerShell;
+    private Method createScriptFile;
+    private Method deleteScriptFile;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        script = Outputs.rows(scriptSize);
+        powerShell = Outputs.newInstance(PowerShellControl.class);
+        createScriptFile = PowerShellControl.class.getDeclaredMethod("createScriptFile", String.class);
+        createScriptFile.setAccessible(true);
+        deleteScriptFile = PowerShellControl.class.getDeclaredMethod("deleteScriptFile", File.class);
+        deleteScriptFile.setAccessible(true);
+    }
+
+    @Benchmark
+    public File writeAndDeleteFile() throws ReflectiveOperationException {
+        File file = (File) createScriptFile.invoke(powerShell, script);
+        deleteScriptFile.invoke(powerShell, file);
+        return file;
+    }
+
+    @Benchmark
+    public String inlineCommand() {
+        return InlineScript.command(script, "", "--END-JPOWERSHELL-SCRIPT--", "psscript_1");
+    }
+}
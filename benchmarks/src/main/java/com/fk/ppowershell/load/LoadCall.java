@@ -0,0 +1,16 @@
+package com.fk.ppowershell.load;
+
+/**
+ One request of the load: when it should have started by the schedule, and when it was sent.
+ The latency is measured from the intended start, so a stalled session also delays the calls waiting
+ behind it instead of hiding them, which corrects the coordinated omission of a plain closed loop
+ */
+final class LoadCall {
+    final long intended;
+    volatile long sent;
+
+    LoadCall(long intended) {
+        this.intended = intended;
+        this.sent = intended;
+    }
+}
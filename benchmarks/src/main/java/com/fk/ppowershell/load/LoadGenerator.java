@@ -0,0 +1,232 @@
+package com.fk.ppowershell.load;
+
+import com.fk.ppowershell.Constant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ Drives the sessions of one mode at a target rate or concurrency and reports the latency percentiles,
+ throughput, timeout rate and memory of the PowerShell processes of the run, e.g.
+ <pre>
+ java -cp benchmarks/target/benchmarks.jar com.fk.ppowershell.load.LoadGenerator --mode=control
+     --executable=benchmarks/pwsh-simulator --model=open --rate=200 --sessions=4 --out=runs.csv --label=1.0.0
+ </pre>
+ Options, as --name=value:
+ <pre>
+ mode         block, control or nonblock, default control
+ executable   PowerShell executable, e.g. the pwsh-simulator script, default pwsh
+ sessions     Sessions, one process each, used round robin, default 1
+ model        closed: every thread sends its next call when the previous one returned,
+              open: calls are sent at the rate whatever the pending ones, default closed
+ concurrency  Threads of the closed model, workers of the blocking modes in the open model, default 8
+ rate         Calls per second, required by the open model, paces the closed model if set
+ duration     Seconds measured, default 30
+ warmup       Seconds before the measure, default 5
+ script       Script text, default Get-Date
+ scriptFile   File of the script text, instead of script
+ timeout      Seconds before a call times out, the maxWaitTime of the sessions, default 4
+ set.NAME     Session configuration value, e.g. --set.isPipelined=true
+ format       csv or json, default csv
+ out          File the result is appended to, default the standard output
+ label        Label of the run, e.g. the version under test
+ </pre>
+ The latency is measured from the time a call should have been sent by the schedule, see {@link LoadCall}.
+ The memory is the resident set size of the processes, read from /proc, -1 where it is not available
+ */
+public final class LoadGenerator {
+    private final Map<String, String> options;
+    private final Map<String, String> config = new HashMap<>();
+    private final AtomicLong rssPeak = new AtomicLong(-1);
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        //Logging every call would be measured with it
+        config.put(Constant.LOG_EXECUTION_TIME, "false");
+        config.put(Constant.METRICS_JMX, "false");
+        config.put(Constant.MAX_WAIT_TIME, option("timeout", "4"));
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().startsWith("set.")) {
+                config.put(option.getKey().substring(4), option.getValue());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                System.err.println("Expected --name=value, got " + arg + ", see the LoadGenerator class for the options");
+                System.exit(2);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        int status = new LoadGenerator(options).run();
+        //The sessions leave non-daemon threads behind
+        System.exit(status);
+    }
+
+    private int run() throws IOException, InterruptedException {
+        String mode = option("mode", "control");
+        String model = option("model", "closed");
+        int sessions = Integer.parseInt(option("sessions", "1"));
+        int concurrency = Integer.parseInt(option("concurrency", "8"));
+        double rate = Double.parseDouble(option("rate", "0"));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "30")));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "5")));
+        long timeout = Long.parseLong(option("timeout", "4"));
+        String script = options.containsKey("scriptFile")
+                ? new String(Files.readAllBytes(Paths.get(options.get("scriptFile"))), StandardCharsets.UTF_8) : option("script", "Get-Date");
+        if (!"open".equals(model) && !"closed".equals(model)) {
+            throw new IllegalArgumentException("Unknown model " + model + ", expected open or closed");
+        }
+        if ("open".equals(model) && rate <= 0) {
+            throw new IllegalArgumentException("The open model needs a rate");
+        }
+
+        LoadTarget target = LoadTarget.open(mode, options.get("executable"), sessions, config, script, concurrency, timeout);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "load-rss-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] pids = target.getPids();
+        sampler.scheduleAtFixedRate(() -> sampleRss(pids), 0, 1, TimeUnit.SECONDS);
+        long start = System.nanoTime();
+        LoadReport report = new LoadReport(start + warmup);
+        try {
+            if ("open".equals(model)) {
+                runOpen(target, report, start, warmup + duration, rate, TimeUnit.SECONDS.toNanos(timeout));
+            } else {
+                runClosed(target, report, start, warmup + duration, rate, concurrency);
+            }
+        } finally {
+            sampler.shutdownNow();
+        }
+        long rssEnd = totalRss(pids);
+        target.close();
+
+        Map<String, Object> run = new LinkedHashMap<>();
+        run.put("time", Instant.now().toString());
+        run.put("label", option("label", ""));
+        run.put("mode", mode);
+        run.put("model", model);
+        run.put("sessions", sessions);
+        run.put("concurrency", concurrency);
+        run.put("rate", rate);
+        run.put("durationS", TimeUnit.NANOSECONDS.toSeconds(duration));
+        Map<String, Object> row = report.summary(run, rssPeak.get(), rssEnd);
+        String out = options.get("out");
+        LoadReport.write(row, option("format", "csv"), out == null ? null : new File(out), System.out);
+        if (out != null) {
+            System.out.println(row);
+        }
+        return 0;
+    }
+
+    //Every call is sent at its time on the schedule, the ones still pending are waited for up to the timeout
+    private static void runOpen(LoadTarget target, LoadReport report, long start, long length, double rate, long timeout) throws InterruptedException {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        AtomicLong pending = new AtomicLong();
+        for (long i = 0; ; i++) {
+            long intended = start + i * interval;
+            if (intended - start >= length) {
+                break;
+            }
+            parkUntil(intended);
+            LoadCall call = new LoadCall(intended);
+            pending.incrementAndGet();
+            target.submit(call).whenComplete((response, failure) -> {
+                report.record(call, response, failure);
+                pending.decrementAndGet();
+            });
+        }
+        long deadline = System.nanoTime() + timeout + TimeUnit.SECONDS.toNanos(5);
+        while (pending.get() > 0 && deadline - System.nanoTime() > 0) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    //Every thread paces its own calls if there is a rate, otherwise it sends the next call right away
+    private static void runClosed(LoadTarget target, LoadReport report, long start, long length, double rate, int concurrency) throws InterruptedException {
+        long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * concurrency / rate) : 0;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < concurrency; t++) {
+            long offset = interval * t / concurrency;
+            Thread thread = new Thread(() -> {
+                long intended = start + offset;
+                while (intended - start < length && System.nanoTime() - start < length) {
+                    if (interval > 0) {
+                        parkUntil(intended);
+                    } else {
+                        intended = System.nanoTime();
+                    }
+                    LoadCall call = new LoadCall(intended);
+                    try {
+                        report.record(call, target.execute(call), null);
+                    } catch (RuntimeException e) {
+                        report.record(call, null, e);
+                    }
+                    intended += interval;
+                }
+            }, "load-closed-" + t);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void parkUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private void sampleRss(long[] pids) {
+        long total = totalRss(pids);
+        long peak;
+        while (total > (peak = rssPeak.get()) && !rssPeak.compareAndSet(peak, total)) {
+            //Retry until the peak is at least the total
+        }
+    }
+
+    //Sum of the VmRSS of the processes in KB, -1 if it can not be read
+    private static long totalRss(long[] pids) {
+        long total = 0;
+        for (long pid : pids) {
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status"), StandardCharsets.UTF_8)) {
+                    if (line.startsWith("VmRSS:")) {
+                        total += Long.parseLong(line.replaceAll("\\D", ""));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                return -1;
+            }
+        }
+        return total;
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+}
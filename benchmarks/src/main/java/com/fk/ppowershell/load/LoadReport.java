@@ -0,0 +1,155 @@
+package com.fk.ppowershell.load;
+
+import com.fk.ppowershell.Histogram;
+import com.fk.ppowershell.PSResponse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ The measures of one run. Calls scheduled during the warmup are not counted
+ */
+final class LoadReport {
+    //From the intended start, corrected for coordinated omission
+    private final Histogram latency = new Histogram();
+    //From the moment the call was sent to the session
+    private final Histogram serviceTime = new Histogram();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong lastCompletion = new AtomicLong();
+    private final long measureFrom;
+
+    LoadReport(long measureFrom) {
+        this.measureFrom = measureFrom;
+    }
+
+    void record(LoadCall call, PSResponse response, Throwable failure) {
+        long now = System.nanoTime();
+        if (call.intended - measureFrom < 0) {
+            return;
+        }
+        latency.record(now - call.intended);
+        serviceTime.record(now - call.sent);
+        if (failure != null || response == null) {
+            errors.increment();
+        } else if (response.isTimeout()) {
+            timeouts.increment();
+        } else if (response.isError()) {
+            errors.increment();
+        }
+        long last;
+        while (now - (last = lastCompletion.get()) > 0 && !lastCompletion.compareAndSet(last, now)) {
+            //Retry until the last completion is at least now
+        }
+    }
+
+    /**
+     * @param run Options of the run, written first
+     */
+    Map<String, Object> summary(Map<String, Object> run, long rssPeakKb, long rssEndKb) {
+        Map<String, Object> row = new LinkedHashMap<>(run);
+        long calls = latency.getCount();
+        double seconds = Math.max(1, lastCompletion.get() - measureFrom) / 1e9;
+        row.put("calls", calls);
+        row.put("throughput", round(calls / seconds));
+        row.put("p50Ms", millis(latency.getPercentile(50)));
+        row.put("p90Ms", millis(latency.getPercentile(90)));
+        row.put("p99Ms", millis(latency.getPercentile(99)));
+        row.put("p999Ms", millis(latency.getPercentile(99.9)));
+        row.put("maxMs", millis(latency.getMax()));
+        row.put("meanMs", millis(latency.getMean()));
+        row.put("serviceP50Ms", millis(serviceTime.getPercentile(50)));
+        row.put("serviceP99Ms", millis(serviceTime.getPercentile(99)));
+        row.put("timeouts", timeouts.sum());
+        row.put("timeoutRate", calls == 0 ? 0.0 : round(timeouts.sum() / (double) calls));
+        row.put("errors", errors.sum());
+        row.put("errorRate", calls == 0 ? 0.0 : round(errors.sum() / (double) calls));
+        row.put("rssPeakKb", rssPeakKb);
+        row.put("rssEndKb", rssEndKb);
+        return row;
+    }
+
+    private static double millis(long nanos) {
+        return round(nanos / 1e6);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    /**
+     * Appends the row to the file, with a header line first if the file is new, or writes it to the stream.
+     * CSV rows of the runs to compare share one file, JSON is one object per line
+     *
+     * @param file null for the stream
+     */
+    static void write(Map<String, Object> row, String format, File file, PrintStream stream) throws IOException {
+        boolean header = file == null || !file.exists() || file.length() == 0;
+        PrintWriter out = file == null ? new PrintWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))
+                : new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        try {
+            if ("json".equals(format)) {
+                out.println(json(row));
+            } else {
+                if (header) {
+                    out.println(String.join(",", row.keySet()));
+                }
+                StringBuilder line = new StringBuilder();
+                for (Object value : row.values()) {
+                    line.append(line.length() == 0 ? "" : ",").append(csv(value));
+                }
+                out.println(line);
+            }
+        } finally {
+            //The stream stays open
+            if (file == null) {
+                out.flush();
+            } else {
+                out.close();
+            }
+        }
+    }
+
+    private static String csv(Object value) {
+        String text = format(value);
+        return text.contains(",") || text.contains("\"") ? '"' + text.replace("\"", "\"\"") + '"' : text;
+    }
+
+    private static String json(Map<String, Object> row) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : row.entrySet()) {
+            json.append(json.length() == 1 ? "" : ",").append(quote(entry.getKey())).append(':');
+            Object value = entry.getValue();
+            json.append(value instanceof Number || value instanceof Boolean ? format(value) : quote(format(value)));
+        }
+        return json.append('}').toString();
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String format(Object value) {
+        return value instanceof Double ? String.format(Locale.ROOT, "%.3f", (Double) value) : String.valueOf(value);
+    }
+}
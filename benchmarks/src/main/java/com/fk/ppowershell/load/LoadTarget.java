@@ -0,0 +1,162 @@
+package com.fk.ppowershell.load;
+
+import com.fk.ppowershell.PSResponse;
+import com.fk.ppowershell.PowerShellSession;
+import com.fk.ppowershell.block.PowerShellBlock;
+import com.fk.ppowershell.control.PowerShellControl;
+import com.fk.ppowershell.nonblock.OperationService;
+import com.fk.ppowershell.nonblock.PowerShellNonblocking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ The sessions under load, of one mode, used round robin
+ */
+abstract class LoadTarget {
+    private final AtomicLong next = new AtomicLong();
+    final String script;
+
+    private LoadTarget(String script) {
+        this.script = script;
+    }
+
+    /**
+     * @param mode block, control or nonblock
+     */
+    static LoadTarget open(String mode, String executable, int sessions, Map<String, String> config, String script, int workers, long timeout) {
+        switch (mode) {
+            case "block":
+                return new Synchronous(script, workers, open(sessions, () -> PowerShellBlock.openProcess(executable, config)));
+            case "control":
+                return new Synchronous(script, workers, open(sessions, () -> PowerShellControl.openProcess(executable, config)));
+            case "nonblock":
+                return new Nonblocking(script, timeout, open(sessions, () -> {
+                    try {
+                        return PowerShellNonblocking.openProcess(executable, () -> new OperationService[0], config);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode + ", expected block, control or nonblock");
+        }
+    }
+
+    //The processes are started in parallel, the start time is not part of the load
+    private static <T> List<T> open(int sessions, Supplier<T> opener) {
+        ExecutorService starter = Executors.newFixedThreadPool(Math.min(sessions, 16));
+        try {
+            List<CompletableFuture<T>> started = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                started.add(CompletableFuture.supplyAsync(opener, starter));
+            }
+            List<T> opened = new ArrayList<>();
+            for (CompletableFuture<T> session : started) {
+                opened.add(session.join());
+            }
+            return opened;
+        } finally {
+            starter.shutdown();
+        }
+    }
+
+    int nextIndex(int size) {
+        return (int) (next.getAndIncrement() % size);
+    }
+
+    //Runs the call on the calling thread, for the closed model
+    abstract PSResponse execute(LoadCall call);
+
+    //Runs the call without waiting for it, for the open model
+    abstract CompletableFuture<PSResponse> submit(LoadCall call);
+
+    abstract long[] getPids();
+
+    abstract void close();
+
+    private static final class Synchronous extends LoadTarget {
+        private final List<PowerShellSession> sessions;
+        private final ExecutorService workers;
+
+        private Synchronous(String script, int workers, List<? extends PowerShellSession> sessions) {
+            super(script);
+            this.sessions = new ArrayList<>(sessions);
+            this.workers = Executors.newFixedThreadPool(workers, r -> {
+                Thread thread = new Thread(r, "load-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Override
+        PSResponse execute(LoadCall call) {
+            PowerShellSession session = sessions.get(nextIndex(sessions.size()));
+            call.sent = System.nanoTime();
+            return session.executeScriptText(script);
+        }
+
+        @Override
+        CompletableFuture<PSResponse> submit(LoadCall call) {
+            return CompletableFuture.supplyAsync(() -> execute(call), workers);
+        }
+
+        @Override
+        long[] getPids() {
+            long[] pids = new long[sessions.size()];
+            for (int i = 0; i < pids.length; i++) {
+                PowerShellSession session = sessions.get(i);
+                pids[i] = session instanceof PowerShellBlock ? ((PowerShellBlock) session).getPid() : ((PowerShellControl) session).getPid();
+            }
+            return pids;
+        }
+
+        @Override
+        void close() {
+            workers.shutdownNow();
+            sessions.forEach(PowerShellSession::close);
+        }
+    }
+
+    private static final class Nonblocking extends LoadTarget {
+        private final List<PowerShellNonblocking> sessions;
+        private final long timeout;
+
+        private Nonblocking(String script, long timeout, List<PowerShellNonblocking> sessions) {
+            super(script);
+            this.sessions = sessions;
+            this.timeout = timeout;
+        }
+
+        @Override
+        PSResponse execute(LoadCall call) {
+            return submit(call).join();
+        }
+
+        @Override
+        CompletableFuture<PSResponse> submit(LoadCall call) {
+            PowerShellNonblocking session = sessions.get(nextIndex(sessions.size()));
+            call.sent = System.nanoTime();
+            return session.submit(null, script, timeout, TimeUnit.SECONDS);
+        }
+
+        @Override
+        long[] getPids() {
+            return sessions.stream().mapToLong(PowerShellNonblocking::getPid).toArray();
+        }
+
+        @Override
+        void close() {
+            sessions.forEach(PowerShellNonblocking::close);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.fk.ppowershell.nonblock;
+
+import com.fk.ppowershell.PSResponse;
+import com.fk.ppowershell.PowerShellMetrics;
+import com.fk.ppowershell.benchmarks.Outputs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ The nonblocking reader: the output framed by the start and end markers is matched
+ to its head by identity and completes the submitted future
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ProcessorNonblockingBenchmark {
+    private static final String IDENTITY = "psscript_1";
+    @Param({"1024", "65536", "1048576", "104857600"})
+    public int outputSize;
+    private HeadCache headCache;
+    private Outputs.GatedStream output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException, IOException {
+        output = Outputs.gated(Outputs.PID_LINE.getBytes(), Outputs.frame(outputSize, IDENTITY, IDENTITY));
+        PowerShellNonblocking powerShell = Outputs.newInstance(PowerShellNonblocking.class);
+        Outputs.setField(powerShell, "p", Outputs.process(output));
+        powerShell.commandWriter = new PrintWriter(powerShell.getP().getOutputStream(), true);
+        //Not initialized, the instance is created without its constructor
+        powerShell.startTimeout = 30;
+        Outputs.setField(powerShell, "metrics", new PowerShellMetrics("Benchmark", "nonblocking"));
+        headCache = new HeadCache(10, TimeUnit.MINUTES);
+        Thread reader = new Thread(new ProcessorNonblocking(powerShell, headCache), "benchmark-nonblock-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        output.close();
+    }
+
+    @Benchmark
+    public PSResponse roundTrip() throws InterruptedException, ExecutionException {
+        CompletableFuture<PSResponse> response = new CompletableFuture<>();
+        HashMap<String, String> head = new HashMap<>();
+        head.put(IDENTITY, "");
+        headCache.put(IDENTITY, head, response);
+        output.release();
+        return response.get();
+    }
+}
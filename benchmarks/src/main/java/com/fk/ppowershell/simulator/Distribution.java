@@ -0,0 +1,57 @@
+package com.fk.ppowershell.simulator;
+
+import java.util.Random;
+
+/**
+ A distribution of the simulated latencies and output sizes, written as
+ fixed:v, uniform:min:max, exponential:mean or lognormal:median:sigma, a bare number is fixed
+ */
+final class Distribution {
+    private enum Kind {FIXED, UNIFORM, EXPONENTIAL, LOGNORMAL}
+
+    private final Kind kind;
+    private final double a;
+    private final double b;
+
+    private Distribution(Kind kind, double a, double b) {
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+    }
+
+    static Distribution parse(String spec) {
+        String[] parts = spec.trim().split(":");
+        try {
+            if (parts.length == 1) {
+                return new Distribution(Kind.FIXED, Double.parseDouble(parts[0]), 0);
+            }
+            Kind kind = Kind.valueOf(parts[0].toUpperCase());
+            int expected = kind == Kind.FIXED || kind == Kind.EXPONENTIAL ? 2 : 3;
+            if (parts.length != expected) {
+                throw new IllegalArgumentException("Expected " + (expected - 1) + " values: " + spec);
+            }
+            return new Distribution(kind, Double.parseDouble(parts[1]), expected == 3 ? Double.parseDouble(parts[2]) : 0);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid distribution: " + spec, e);
+        }
+    }
+
+    //Never negative
+    long sample(Random random) {
+        double value;
+        switch (kind) {
+            case UNIFORM:
+                value = a + random.nextDouble() * (b - a);
+                break;
+            case EXPONENTIAL:
+                value = -a * Math.log(1 - random.nextDouble());
+                break;
+            case LOGNORMAL:
+                value = a * Math.exp(b * random.nextGaussian());
+                break;
+            default:
+                value = a;
+        }
+        return Math.max(0, Math.round(value));
+    }
+}
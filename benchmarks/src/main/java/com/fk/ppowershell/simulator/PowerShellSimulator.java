@@ -0,0 +1,430 @@
+package com.fk.ppowershell.simulator;
+
+import com.fk.ppowershell.Constant;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ A stand-in for pwsh that speaks the stdin/stdout protocol of the sessions, to load test them without PowerShell.
+ Pass the pwsh-simulator script next to this module to openProcess as the PowerShell executable path.
+ It answers $pid, runs the .ps1 files and the in-band commands of {@link com.fk.ppowershell.InlineScript}
+ and {@link com.fk.ppowershell.ScriptCache}, and writes their header and trailer lines like PowerShell does.
+ A script is not interpreted: its string literal lines are written, Start-Sleep, Write-Error and throw are honoured,
+ a Base64 parameter dot-sourced like the batches of BatchingSession is run line by line,
+ and any other line makes the script run the {@link Workload} once.
+ The command loop of a cancellable session is emulated, the running command stops where it is interrupted.
+ The errors are written to the error stream, with the error trailers of the separate error stream mode
+ */
+public final class PowerShellSimulator {
+    private static final Pattern SCRIPT_BLOCK = Pattern.compile(
+            "\\(\\[ScriptBlock]::Create\\(\\[Text\\.Encoding]::UTF8\\.GetString\\(\\[Convert]::FromBase64String\\('([A-Za-z0-9+/=]*)'\\)\\)\\)\\)");
+    private static final Pattern FUNCTION = Pattern.compile("\\$\\{function:global:(\\w+)} = ");
+    private static final Pattern REMOVE_FUNCTION = Pattern.compile("Remove-Item function:\\\\(\\w+) -ErrorAction Ignore; ");
+    private static final Pattern DOT_SOURCE = Pattern.compile(
+            "\\. \\(\\[ScriptBlock]::Create\\(\\[Text\\.Encoding]::UTF8\\.GetString\\(\\[Convert]::FromBase64String\\(\\$(\\w+)\\)\\)\\)\\)");
+    private static final Pattern PARAMETER = Pattern.compile("-(\\w+):\\(?'((?:[^']++|'')*+)'");
+    private static final Pattern LITERAL = Pattern.compile("'((?:[^']++|'')*+)'");
+    private static final Pattern SLEEP = Pattern.compile("Start-Sleep(?: -(Milliseconds|Seconds))? (\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern THROW = Pattern.compile("throw(?: +(.*))?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern WRITE_ERROR = Pattern.compile("Write-Error +(.*)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ERROR_TRAILER = Pattern.compile(
+            "\\[Console]::Error\\.WriteLine\\(\"" + Constant.END_ERROR_STRING + " (\\S+) (?:\\$\\?|False) \\$LASTEXITCODE\"\\)");
+    private static final String LOOP = "# ppowershell command loop";
+    private static final String END_OF_INPUT = "\u0000";
+    private final Workload workload;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Map<String, String> functions = new HashMap<>();
+    //The command loop was started, the next lines are read by it
+    private boolean loop = false;
+    //The command loop writes the errors and error trailers of its commands
+    private boolean separateErrors = false;
+    //Identity of the command the loop runs
+    private String running;
+    //$?, false once the last command has written an error
+    private boolean status = true;
+
+    PowerShellSimulator(Workload workload, PrintStream out, PrintStream err) {
+        this.workload = workload;
+        this.out = out;
+        this.err = err;
+    }
+
+    //The arguments of pwsh, -nologo -noexit -Command -, are ignored
+    public static void main(String[] args) throws IOException {
+        Workload workload = Workload.fromSystemProperties();
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false,
+                Charset.defaultCharset().name());
+        PrintStream err = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 16), false,
+                Charset.defaultCharset().name());
+        Workload.sleep(workload.startupDelay);
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, Charset.defaultCharset()));
+        new PowerShellSimulator(workload, out, err).run(in);
+    }
+
+    void run(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if ("exit".equals(line.trim())) {
+                break;
+            }
+            //$? is the status of the previous command in the error trailer line
+            if (!ERROR_TRAILER.matcher(line.trim()).matches()) {
+                status = true;
+            }
+            try {
+                command(line);
+            } catch (TerminatingError e) {
+                error(e.getMessage());
+            }
+            //The next command is only read when the output of this one is written, like PowerShell does
+            out.flush();
+            err.flush();
+            if (loop) {
+                loop(in);
+                break;
+            }
+        }
+        out.flush();
+        err.flush();
+    }
+
+    /*
+     * "identity command" lines, and "CANCEL identity" lines read by another thread while a command runs.
+     * A cancelled command stops without its trailer, the loop writes the end marker and the identity instead
+     */
+    private void loop(BufferedReader in) {
+        BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+        Set<String> cancelled = ConcurrentHashMap.newKeySet();
+        Thread runner = Thread.currentThread();
+        Thread reader = new Thread(() -> {
+            try {
+                String line;
+                while ((line = in.readLine()) != null && !"exit".equals(line.trim())) {
+                    if (line.startsWith(Constant.CANCEL_SCRIPT_STRING + " ")) {
+                        cancel(line.substring(Constant.CANCEL_SCRIPT_STRING.length() + 1), queue, cancelled, runner);
+                    } else {
+                        queue.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                //Same as the end of the input
+            }
+            queue.add(END_OF_INPUT);
+        }, "simulator-loop-reader");
+        reader.setDaemon(true);
+        reader.start();
+        while (true) {
+            String line;
+            try {
+                line = queue.take();
+            } catch (InterruptedException e) {
+                //A cancel that came after the end of its command
+                continue;
+            }
+            if (END_OF_INPUT.equals(line)) {
+                break;
+            }
+            int space = line.indexOf(' ');
+            String identity = line.substring(0, space);
+            boolean stopped = cancelled.remove(identity);
+            if (!stopped) {
+                synchronized (this) {
+                    running = identity;
+                }
+                status = true;
+                try {
+                    command(line.substring(space + 1));
+                } catch (TerminatingError e) {
+                    error(e.getMessage());
+                } catch (PipelineStopped | IOException e) {
+                    stopped = true;
+                } finally {
+                    synchronized (this) {
+                        running = null;
+                        Thread.interrupted();
+                    }
+                }
+            }
+            if (stopped) {
+                out.println(Constant.END_SCRIPT_STRING);
+                out.println(identity);
+            }
+            out.flush();
+            if (separateErrors) {
+                err.println(Constant.END_ERROR_STRING + " " + identity + " " + (stopped ? "False" : status ? "True" : "False") + " ");
+            }
+            err.flush();
+        }
+        out.flush();
+    }
+
+    private synchronized void cancel(String identity, BlockingQueue<String> queue, Set<String> cancelled, Thread runner) {
+        if (identity.equals(running)) {
+            runner.interrupt();
+        } else if (queue.stream().anyMatch(line -> line.startsWith(identity + " "))) {
+            cancelled.add(identity);
+        }
+    }
+
+    private void command(String line) throws IOException, TerminatingError {
+        String command = line.trim();
+        Matcher errorTrailer = ERROR_TRAILER.matcher(command);
+        if (command.equalsIgnoreCase("$pid")) {
+            out.println(pid());
+        } else if (errorTrailer.matches()) {
+            //$? and $LASTEXITCODE of the previous command
+            errorTrailer(errorTrailer.group(1));
+        } else if (command.startsWith("try { ") && command.endsWith(" }") && command.contains(" } finally { ")) {
+            frame(command);
+        } else if (command.startsWith("& ") && SCRIPT_BLOCK.matcher(command).region(2, command.length()).lookingAt()) {
+            statement(command);
+        } else if (!echo(command)) {
+            int end = command.toLowerCase().indexOf(".ps1");
+            Path path = end > 0 ? Paths.get(command.substring(0, end + 4)) : null;
+            if (path != null && Files.isRegularFile(path)) {
+                script(Files.readAllLines(path, Charset.defaultCharset()), command.substring(end + 4));
+            } else {
+                script(Collections.singletonList(command), "");
+            }
+        }
+    }
+
+    /*
+     * try { 'header'; statement } catch { 'line'; $_ | Out-String } finally { 'trailer'; 'trailer' }
+     * The catch block is optional, the trailers are written even after a terminating error
+     */
+    private void frame(String command) throws IOException, TerminatingError {
+        int finallyAt = command.lastIndexOf(" } finally { ");
+        String body = command.substring("try { ".length(), finallyAt);
+        int catchAt = body.lastIndexOf(" } catch { ");
+        String catchBlock = catchAt < 0 ? null : body.substring(catchAt + " } catch { ".length());
+        body = catchAt < 0 ? body : body.substring(0, catchAt);
+        Matcher header = LITERAL.matcher(body);
+        int position = 0;
+        while (header.region(position, body.length()).lookingAt() && body.startsWith("; ", header.end())) {
+            out.println(unquote(header.group(1)));
+            position = header.end() + 2;
+        }
+        String statement = body.substring(position);
+        //The error trailer of the separate error stream mode, written after the statement or by the catch block
+        Matcher statusTrailer = ERROR_TRAILER.matcher(statement);
+        int statusAt = statement.lastIndexOf("; ");
+        String statusIdentity = null;
+        if (statusAt >= 0 && statusTrailer.region(statusAt + 2, statement.length()).matches()) {
+            statusIdentity = statusTrailer.group(1);
+            statement = statement.substring(0, statusAt);
+        }
+        boolean stopped = false;
+        try {
+            statement(statement);
+            if (statusIdentity != null) {
+                errorTrailer(statusIdentity);
+            }
+        } catch (PipelineStopped e) {
+            //Like PowerShell, nothing is written once the pipeline is stopping
+            stopped = true;
+            throw e;
+        } catch (TerminatingError e) {
+            status = false;
+            if (catchBlock == null) {
+                throw e;
+            }
+            Matcher failure = ERROR_TRAILER.matcher(catchBlock);
+            if (failure.find()) {
+                error(e.getMessage());
+                errorTrailer(failure.group(1));
+                return;
+            }
+            Matcher line = LITERAL.matcher(catchBlock);
+            while (line.find()) {
+                out.println(unquote(line.group(1)));
+            }
+            out.println(e.getMessage());
+        } finally {
+            Matcher trailer = LITERAL.matcher(command.substring(finallyAt + " } finally { ".length(), command.length() - 2));
+            while (!stopped && trailer.find()) {
+                out.println(unquote(trailer.group(1)));
+            }
+        }
+    }
+
+    //Function definitions and removals of the script cache, then a call of a script block or a cached function
+    private void statement(String statement) throws IOException, TerminatingError {
+        while (true) {
+            Matcher function = FUNCTION.matcher(statement);
+            Matcher remove = REMOVE_FUNCTION.matcher(statement);
+            if (function.lookingAt()) {
+                Matcher block = SCRIPT_BLOCK.matcher(statement).region(function.end(), statement.length());
+                if (!block.lookingAt() || !statement.startsWith("; ", block.end())) {
+                    break;
+                }
+                functions.put(function.group(1), decode(block.group(1)));
+                statement = statement.substring(block.end() + 2);
+            } else if (remove.lookingAt()) {
+                functions.remove(remove.group(1));
+                statement = statement.substring(remove.end());
+            } else {
+                break;
+            }
+        }
+        Matcher block = SCRIPT_BLOCK.matcher(statement);
+        if (statement.startsWith("& ") && block.region(2, statement.length()).lookingAt()) {
+            String script = decode(block.group(1));
+            if (script.startsWith(LOOP)) {
+                loop = true;
+                separateErrors = statement.substring(block.end()).contains("-SeparateErrors");
+                return;
+            }
+            script(lines(script), statement.substring(block.end()));
+            return;
+        }
+        String[] call = statement.split(" ", 2);
+        String function = functions.get(call[0]);
+        //A single command framed by the command loop
+        if (function == null && !call[0].startsWith("__pps_")) {
+            script(Collections.singletonList(statement), "");
+            return;
+        }
+        if (function == null) {
+            throw new TerminatingError(call[0] + ": The term '" + call[0] + "' is not recognized as a name of a cmdlet, function, script file, or executable program.");
+        }
+        script(lines(function), call.length > 1 ? call[1] : "");
+    }
+
+    private void script(List<String> lines, String params) throws IOException, TerminatingError {
+        boolean worked = false;
+        for (String line : lines) {
+            String command = line.trim();
+            if (command.isEmpty() || command.startsWith("#") || command.startsWith("param(") || echo(command)) {
+                continue;
+            }
+            Matcher dotSource = DOT_SOURCE.matcher(command);
+            Matcher sleep = SLEEP.matcher(command);
+            Matcher fail = THROW.matcher(command);
+            Matcher error = WRITE_ERROR.matcher(command);
+            Matcher errorTrailer = ERROR_TRAILER.matcher(command);
+            if (dotSource.matches()) {
+                String value = parameter(params, dotSource.group(1));
+                for (String sourced : value == null ? Collections.<String>emptyList() : lines(decode(value))) {
+                    command(sourced);
+                }
+            } else if (sleep.matches()) {
+                long value = Long.parseLong(sleep.group(2));
+                Workload.sleep("Seconds".equalsIgnoreCase(sleep.group(1)) ? value * 1000 : value);
+            } else if (errorTrailer.matches()) {
+                errorTrailer(errorTrailer.group(1));
+            } else if (error.matches()) {
+                error("Write-Error: " + unquoteAny(error.group(1)));
+            } else if (fail.matches()) {
+                throw new TerminatingError("Exception: " + (fail.group(1) == null ? "ScriptHalted" : unquoteAny(fail.group(1))));
+            } else if (!worked) {
+                worked = true;
+                workload.run(out);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new PipelineStopped();
+            }
+        }
+    }
+
+    //Written after the output of the command, PowerShell writes its error stream apart
+    private void error(String message) {
+        status = false;
+        out.flush();
+        err.println(message);
+        err.flush();
+    }
+
+    private void errorTrailer(String identity) {
+        out.flush();
+        err.println(Constant.END_ERROR_STRING + " " + identity + " " + (status ? "True" : "False") + " ");
+        err.flush();
+    }
+
+    private static String parameter(String params, String name) {
+        Matcher parameter = PARAMETER.matcher(params);
+        while (parameter.find()) {
+            if (parameter.group(1).equalsIgnoreCase(name)) {
+                return unquote(parameter.group(2));
+            }
+        }
+        return null;
+    }
+
+    //A line that is only a string literal is written as it is
+    private boolean echo(String command) {
+        if (command.length() >= 2 && (command.charAt(0) == '"' || command.charAt(0) == '\'')
+                && command.charAt(command.length() - 1) == command.charAt(0)) {
+            out.println(unquoteAny(command));
+            return true;
+        }
+        return false;
+    }
+
+    private static String unquoteAny(String literal) {
+        if (literal.length() >= 2 && literal.charAt(0) == '\'' && literal.endsWith("'")) {
+            return unquote(literal.substring(1, literal.length() - 1));
+        }
+        if (literal.length() >= 2 && literal.charAt(0) == '"' && literal.endsWith("\"")) {
+            return literal.substring(1, literal.length() - 1).replace("\"\"", "\"");
+        }
+        return literal;
+    }
+
+    private static String unquote(String singleQuoted) {
+        return singleQuoted.replace("''", "'");
+    }
+
+    private static String decode(String base64) {
+        return new String(Base64.getDecoder().decode(base64), UTF_8);
+    }
+
+    private static List<String> lines(String script) {
+        return Arrays.asList(script.split("\r?\n"));
+    }
+
+    private static String pid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        return name.substring(0, name.indexOf('@'));
+    }
+
+    //The command loop stopped the script
+    private static final class PipelineStopped extends RuntimeException {
+        private PipelineStopped() {
+            super(null, null, false, false);
+        }
+    }
+
+    //Stops the script, it is written like PowerShell writes an uncaught exception
+    private static final class TerminatingError extends Exception {
+        private TerminatingError(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
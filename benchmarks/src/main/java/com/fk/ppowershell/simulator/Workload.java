@@ -0,0 +1,93 @@
+package com.fk.ppowershell.simulator;
+
+import java.io.PrintStream;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ What a simulated script does: it waits for its latency, then writes its output,
+ and may instead fail, hang or crash the process. Read from the simulator.* system properties:
+ <pre>
+ simulator.latency       Milliseconds before the output, a {@link Distribution}, default 0
+ simulator.outputSize    Bytes of output, a {@link Distribution}, default 64
+ simulator.errorRate     Share of the scripts writing an error record after their output, default 0
+ simulator.hangRate      Share of the scripts that hang, default 0
+ simulator.hangTime      Milliseconds a hang lasts, 0 until the process is killed, default 0
+ simulator.crashRate     Share of the scripts ending the process without output, default 0
+ simulator.startupDelay  Milliseconds before the first command is read, like the boot of pwsh, default 0
+ simulator.seed          Seed of the random choices, for a repeatable run
+ </pre>
+ */
+final class Workload {
+    private static final String ROW = "    412      27    12345      23456       1.23   4242   1 pwsh-sim-";
+    private final Distribution latency;
+    private final Distribution outputSize;
+    private final double errorRate;
+    private final double hangRate;
+    private final long hangTime;
+    private final double crashRate;
+    final long startupDelay;
+    private final Random random;
+
+    private Workload(Properties properties) {
+        this.latency = Distribution.parse(properties.getProperty("simulator.latency", "0"));
+        this.outputSize = Distribution.parse(properties.getProperty("simulator.outputSize", "64"));
+        this.errorRate = Double.parseDouble(properties.getProperty("simulator.errorRate", "0"));
+        this.hangRate = Double.parseDouble(properties.getProperty("simulator.hangRate", "0"));
+        this.hangTime = Long.parseLong(properties.getProperty("simulator.hangTime", "0"));
+        this.crashRate = Double.parseDouble(properties.getProperty("simulator.crashRate", "0"));
+        this.startupDelay = Long.parseLong(properties.getProperty("simulator.startupDelay", "0"));
+        String seed = properties.getProperty("simulator.seed");
+        this.random = seed == null ? new Random() : new Random(Long.parseLong(seed));
+    }
+
+    static Workload fromSystemProperties() {
+        return new Workload(System.getProperties());
+    }
+
+    void run(PrintStream out) {
+        double choice = random.nextDouble();
+        if (choice < crashRate) {
+            out.flush();
+            //Like a killed process: no output, no exit code of its own
+            Runtime.getRuntime().halt(137);
+        }
+        if (choice < crashRate + hangRate) {
+            out.flush();
+            sleep(hangTime > 0 ? hangTime : Long.MAX_VALUE);
+            return;
+        }
+        sleep(latency.sample(random));
+        writeRows(out, outputSize.sample(random));
+        if (random.nextDouble() < errorRate) {
+            out.println("Write-Error: Simulated error");
+        }
+    }
+
+    //Rows like the ones of Get-Process, the last one cut to the size
+    private static void writeRows(PrintStream out, long size) {
+        long written = 0;
+        StringBuilder row = new StringBuilder(ROW.length() + 12);
+        for (int i = 0; written < size; i++) {
+            row.setLength(0);
+            row.append(ROW).append(i);
+            if (written + row.length() > size) {
+                row.setLength((int) (size - written));
+            }
+            out.append(row).println();
+            written += row.length() + 1;
+        }
+    }
+
+    static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
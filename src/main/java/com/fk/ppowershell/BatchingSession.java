@@ -0,0 +1,295 @@
+package com.fk.ppowershell;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.fk.ppowershell.Constant.*;
+
+/**
+ 批量执行：包装一个会话，把短时间内提交的多个小脚本合并为一个脚本，一次写入powershell进程
+ 1、第一个到达的业务线程等待 batchWindow 毫秒或凑满 batchMaxSize 个脚本，然后执行整批脚本
+ 2、每个脚本的输出由 START_ITEM_STRING/END_ITEM_STRING 及其序号分隔，拆分后返回给各自的调用方
+ 3、每个脚本在自己的 try/catch 中执行，一个脚本的终止错误只影响它自己的响应
+ 4、整批脚本以Base64参数内联发送，编码后超过 maxInlineScriptSize 的批次在加入前提前执行，单个超长脚本不参与合并
+ 5、错误流分离模式下，同一批脚本的响应带有整批的错误输出和$LASTEXITCODE，出现终止错误的脚本$?为False
+ */
+public final class BatchingSession implements PowerShellSession {
+    private static final Logger log = Logger.getLogger(BatchingSession.class.getName());
+    //Always the same text, so the session caches it, the batch is passed as a parameter
+    private static final String BATCH_SCRIPT = "param([string]$batch)\n"
+            + ". ([ScriptBlock]::Create([Text.Encoding]::UTF8.GetString([Convert]::FromBase64String($batch))))";
+    //Upper bound of the frame text around a script, with the largest index
+    private static final int FRAME_SIZE = frame(Integer.MAX_VALUE, "").getBytes(StandardCharsets.UTF_8).length;
+    private final PowerShellSession session;
+    private Batch current;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong items = new AtomicLong();
+    //Config values
+    private long batchWindow = 5;
+    private int batchMaxSize = 16;
+    private int maxInlineScriptSize = 16384;
+
+    private BatchingSession(PowerShellSession session) {
+        this.session = session;
+    }
+
+    public void configuration(Map<String, String> config) {
+        try {
+            if (config == null) {
+                config = new HashMap<>();
+            }
+            Properties properties = PowerShellConfig.getConfig();
+            this.batchWindow = Long.parseLong(config.get(BATCH_WINDOW) != null ? config.get(BATCH_WINDOW) : properties.getProperty(BATCH_WINDOW));
+            this.batchMaxSize = Integer.parseInt(config.get(BATCH_MAX_SIZE) != null ? config.get(BATCH_MAX_SIZE) : properties.getProperty(BATCH_MAX_SIZE));
+            this.maxInlineScriptSize = Integer.parseInt(config.get(MAX_INLINE_SCRIPT_SIZE) != null ? config.get(MAX_INLINE_SCRIPT_SIZE)
+                    : properties.getProperty(MAX_INLINE_SCRIPT_SIZE));
+        } catch (Exception nfe) {
+            log.log(Level.WARNING, "Could not read configuration. Using default values.", nfe);
+        }
+    }
+
+    public static BatchingSession wrap(PowerShellSession session) {
+        return wrap(session, null);
+    }
+
+    /**
+     * @param session The session executing the batches, closed with this session
+     * @param config  Overrides batchWindow, batchMaxSize and maxInlineScriptSize of pps.properties, may be null
+     */
+    public static BatchingSession wrap(PowerShellSession session, Map<String, String> config) {
+        BatchingSession batchingSession = new BatchingSession(session);
+        batchingSession.configuration(config);
+        return batchingSession;
+    }
+
+    //Script files are not batched
+    @Override
+    public PSResponse executeScriptFile(String scriptPath) {
+        return session.executeScriptFile(scriptPath);
+    }
+
+    @Override
+    public PSResponse executeScriptFile(String scriptPath, String params) {
+        return session.executeScriptFile(scriptPath, params);
+    }
+
+    @Override
+    public PSResponse executeScriptText(String script) {
+        return executeScriptText(script, "");
+    }
+
+    @Override
+    public PSResponse executeScriptText(String script, String params) {
+        if (batchMaxSize <= 1) {
+            return session.executeScriptText(script, params);
+        }
+        Item item = new Item(script, params);
+        //Too large to be inlined even alone, the session falls back to a temporary file
+        if (!fits(item.size)) {
+            return session.executeScriptText(script, params);
+        }
+        Batch batch;
+        boolean leader;
+        synchronized (this) {
+            //The batch is executed as it is, the item starts the next one
+            if (current != null && !fits(current.size + item.size)) {
+                current = null;
+                notifyAll();
+            }
+            leader = current == null;
+            if (leader) {
+                current = new Batch();
+            }
+            batch = current;
+            batch.items.add(item);
+            batch.size += item.size;
+            if (batch.items.size() >= batchMaxSize) {
+                current = null;
+                notifyAll();
+            }
+        }
+        if (leader) {
+            awaitBatch(batch);
+            execute(batch.items);
+        }
+        try {
+            return item.response.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    //Wait until the window has passed or the batch is full
+    private synchronized void awaitBatch(Batch batch) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindow);
+        long remaining;
+        while (current == batch && (remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (current == batch) {
+            current = null;
+        }
+    }
+
+    private void execute(List<Item> batch) {
+        batches.incrementAndGet();
+        items.addAndGet(batch.size());
+        try {
+            if (batch.size() == 1) {
+                Item item = batch.get(0);
+                item.response.complete(session.executeScriptText(item.script, item.params));
+                return;
+            }
+            PSResponse response = session.executeScriptText(BATCH_SCRIPT, "-batch:'" + encode(batch) + "'");
+            split(batch, response);
+        } catch (RuntimeException e) {
+            for (Item item : batch) {
+                item.response.completeExceptionally(e);
+            }
+        }
+    }
+
+    //The batch is passed in-band as a parameter, so its encoded length is bounded like an inline script
+    private boolean fits(long size) {
+        return (size + 2) / 3 * 4 <= maxInlineScriptSize;
+    }
+
+    private static String encode(List<Item> batch) {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < batch.size(); i++) {
+            script.append(frame(i, batch.get(i).call));
+        }
+        return Base64.getEncoder().encodeToString(script.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    //Every item runs in its own scope, framed by the item markers and its index
+    private static String frame(int index, String call) {
+        return "try { " + InlineScript.literal(START_ITEM_STRING) + "; '" + index + "'; " + call
+                + " } catch { " + InlineScript.literal(ERROR_ITEM_STRING) + "; $_ | Out-String }"
+                + " finally { " + InlineScript.literal(END_ITEM_STRING) + "; '" + index + "' }\n";
+    }
+
+    //Items without a complete frame get the error or timeout of the batch
+    private static void split(List<Item> batch, PSResponse response) {
+        String output = response.getOutPut();
+        if (output != null && !response.isError() && !response.isTimeout()) {
+            String[] lines = output.split("\r?\n", -1);
+            for (int i = 0; i < lines.length; i++) {
+                if (!lines[i].equals(START_ITEM_STRING) || i + 1 >= lines.length) {
+                    continue;
+                }
+                String index = lines[++i];
+                StringBuilder itemOutput = new StringBuilder();
+                boolean error = false;
+                while (++i < lines.length && !(lines[i].equals(END_ITEM_STRING) && i + 1 < lines.length && lines[i + 1].equals(index))) {
+                    if (lines[i].equals(ERROR_ITEM_STRING)) {
+                        error = true;
+                    } else {
+                        itemOutput.append(itemOutput.length() == 0 ? "" : "\r\n").append(lines[i]);
+                    }
+                }
+                if (i < lines.length) {
+                    i++;
+                    complete(batch, index, itemResponse(response, error, trimEnd(itemOutput)));
+                }
+            }
+        }
+        for (Item item : batch) {
+            if (response.isError() || response.isTimeout()) {
+                item.response.complete(new PSResponse(response));
+            } else {
+                item.response.complete(new PSResponse(true, "Batch output has no frame for the script"));
+            }
+        }
+    }
+
+    //The error output and exit code of the separate error stream mode are the ones of the whole batch
+    private static PSResponse itemResponse(PSResponse batchResponse, boolean error, String output) {
+        PSResponse response = new PSResponse(batchResponse);
+        response.error = error;
+        response.outPut = output;
+        if (error && response.lastStatus != null) {
+            response.lastStatus = false;
+        }
+        return response;
+    }
+
+    private static String trimEnd(StringBuilder output) {
+        int end = output.length();
+        while (end > 0 && Character.isWhitespace(output.charAt(end - 1))) {
+            end--;
+        }
+        return output.substring(0, end);
+    }
+
+    private static void complete(List<Item> batch, String index, PSResponse response) {
+        try {
+            int i = Integer.parseInt(index);
+            if (i >= 0 && i < batch.size()) {
+                batch.get(i).response.complete(response);
+            }
+        } catch (NumberFormatException e) {
+            log.log(Level.WARNING, "Unexpected batch item index {0}", index);
+        }
+    }
+
+    //Batches executed, including single scripts
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    public long getItemCount() {
+        return items.get();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return session.isAlive();
+    }
+
+    @Override
+    public void close() {
+        session.close();
+    }
+
+    private static final class Batch {
+        private final List<Item> items = new ArrayList<>();
+        //UTF-8 bytes of the batch script before encoding, at most
+        private long size;
+    }
+
+    private static final class Item {
+        private final String script;
+        private final String params;
+        //The statement running the script in the batch
+        private final String call;
+        private final long size;
+        private final CompletableFuture<PSResponse> response = new CompletableFuture<>();
+
+        private Item(String script, String params) {
+            this.script = script;
+            this.params = params;
+            this.call = InlineScript.call(script, params);
+            this.size = call.getBytes(StandardCharsets.UTF_8).length + FRAME_SIZE;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.fk.ppowershell;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.fk.ppowershell.Constant.*;
+
+/**
+ 结果缓存：包装一个会话，只读查询在有效期内重复执行时直接返回缓存的输出，不再写入powershell进程
+ 1、以脚本（或脚本路径）和参数为键，只缓存成功的响应，$?为False的响应不缓存
+ 2、缓存总量按输出长度计算，超过 resultCacheMaxWeight 时淘汰最久未使用的结果
+ 3、只应用于幂等的只读脚本，修改了状态的脚本需调用 invalidate
+ */
+public final class CachedSession implements PowerShellSession {
+    private static final Logger log = Logger.getLogger(CachedSession.class.getName());
+    private final PowerShellSession session;
+    //Least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    //Keys whose execution is running, a result is only stored if no invalidation happened while it ran
+    private final Map<String, Miss> running = new HashMap<>();
+    //Bumped by invalidateIf and invalidateAll
+    private long generation;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    //Config values
+    private long ttl = 30;
+    private long maxWeight = 1 << 20;
+
+    private CachedSession(PowerShellSession session) {
+        this.session = session;
+    }
+
+    public void configuration(Map<String, String> config) {
+        try {
+            if (config == null) {
+                config = new HashMap<>();
+            }
+            Properties properties = PowerShellConfig.getConfig();
+            this.ttl = Long.parseLong(config.get(RESULT_CACHE_TTL) != null ? config.get(RESULT_CACHE_TTL) : properties.getProperty(RESULT_CACHE_TTL));
+            this.maxWeight = Long.parseLong(config.get(RESULT_CACHE_MAX_WEIGHT) != null ? config.get(RESULT_CACHE_MAX_WEIGHT)
+                    : properties.getProperty(RESULT_CACHE_MAX_WEIGHT));
+        } catch (Exception nfe) {
+            log.log(Level.WARNING, "Could not read configuration. Using default values.", nfe);
+        }
+    }
+
+    public static CachedSession wrap(PowerShellSession session) {
+        return wrap(session, null);
+    }
+
+    /**
+     * @param session The session executing the scripts that are not cached, closed with this session
+     * @param config  Overrides the result cache values of pps.properties, may be null
+     */
+    public static CachedSession wrap(PowerShellSession session, Map<String, String> config) {
+        CachedSession cachedSession = new CachedSession(session);
+        cachedSession.configuration(config);
+        return cachedSession;
+    }
+
+    @Override
+    public PSResponse executeScriptFile(String scriptPath) {
+        return executeScriptFile(scriptPath, "");
+    }
+
+    @Override
+    public PSResponse executeScriptFile(String scriptPath, String params) {
+        return cached("file:" + scriptPath, params, ttl, TimeUnit.SECONDS, () -> session.executeScriptFile(scriptPath, params));
+    }
+
+    @Override
+    public PSResponse executeScriptText(String script) {
+        return executeScriptText(script, "");
+    }
+
+    @Override
+    public PSResponse executeScriptText(String script, String params) {
+        return executeScriptText(script, params, ttl, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param ttl How long the output of this call is returned to the same script and params, 0 to bypass the cache
+     */
+    public PSResponse executeScriptText(String script, String params, long ttl, TimeUnit unit) {
+        return cached("text:" + script, params, ttl, unit, () -> session.executeScriptText(script, params));
+    }
+
+    private PSResponse cached(String script, String params, long ttl, TimeUnit unit, Supplier<PSResponse> execution) {
+        if (ttl <= 0) {
+            return execution.get();
+        }
+        String key = key(script, params);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                hits.incrementAndGet();
+                //A copy, the response is mutable
+                return new PSResponse(entry.response);
+            }
+            if (entry != null) {
+                remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        Miss miss;
+        long startGeneration;
+        long startKeyGeneration;
+        synchronized (this) {
+            miss = running.computeIfAbsent(key, k -> new Miss());
+            miss.count++;
+            startGeneration = generation;
+            startKeyGeneration = miss.generation;
+        }
+        PSResponse response = null;
+        try {
+            response = execution.get();
+        } finally {
+            synchronized (this) {
+                if (--miss.count == 0) {
+                    running.remove(key);
+                }
+                //The output may predate the invalidation, it is returned but not cached
+                boolean invalidated = generation != startGeneration || miss.generation != startKeyGeneration;
+                //A script that failed with a separate error stream is not an error of the call, it is not cached either
+                if (!invalidated && response != null && !response.isError() && !response.isTimeout() && response.getOutPut() != null
+                        && !Boolean.FALSE.equals(response.getLastStatus())) {
+                    store(key, new Entry(new PSResponse(response), System.nanoTime() + unit.toNanos(ttl)));
+                }
+            }
+        }
+        return response;
+    }
+
+    private void store(String key, Entry entry) {
+        long entryWeight = key.length() + entry.length;
+        if (entryWeight > maxWeight) {
+            return;
+        }
+        remove(key);
+        entries.put(key, entry);
+        weight += entryWeight;
+        //Expired entries go first, then the least recently used ones
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext() && weight > maxWeight) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getValue().expiresAt - now <= 0) {
+                it.remove();
+                weight -= eldest.getKey().length() + eldest.getValue().length;
+            }
+        }
+        it = entries.entrySet().iterator();
+        while (it.hasNext() && weight > maxWeight) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            weight -= eldest.getKey().length() + eldest.getValue().length;
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            weight -= key.length() + removed.length;
+        }
+    }
+
+    public synchronized void invalidate(String script, String params) {
+        invalidateKey(key("text:" + script, params));
+    }
+
+    public synchronized void invalidateFile(String scriptPath, String params) {
+        invalidateKey(key("file:" + scriptPath, params));
+    }
+
+    private void invalidateKey(String key) {
+        remove(key);
+        Miss miss = running.get(key);
+        if (miss != null) {
+            miss.generation++;
+        }
+    }
+
+    /**
+     * Remove the results of the scripts matching the predicate, e.g. every call of a script whatever its params
+     *
+     * @param predicate Tested with the script text or path, and the params
+     */
+    public synchronized void invalidateIf(BiPredicate<String, String> predicate) {
+        generation++;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            int separator = entry.getKey().indexOf('\0');
+            String script = entry.getKey().substring(entry.getKey().indexOf(':') + 1, separator);
+            if (predicate.test(script, entry.getKey().substring(separator + 1))) {
+                it.remove();
+                weight -= entry.getKey().length() + entry.getValue().length;
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        weight = 0;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    //Sum of the key and output lengths of the cached results
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return session.isAlive();
+    }
+
+    @Override
+    public void close() {
+        invalidateAll();
+        session.close();
+    }
+
+    private static String key(String script, String params) {
+        return script + '\0' + (params == null ? "" : params);
+    }
+
+    //The executions of a key that are running
+    private static final class Miss {
+        private int count;
+        //Bumped by the invalidations of the key
+        private long generation;
+    }
+
+    private static final class Entry {
+        private final PSResponse response;
+        //Characters of the output and error output
+        private final long length;
+        private final long expiresAt;
+
+        private Entry(PSResponse response, long expiresAt) {
+            this.response = response;
+            this.length = response.getOutPut().length() + (response.getErrorOutput() == null ? 0 : response.getErrorOutput().length());
+            this.expiresAt = expiresAt;
+        }
+    }
+}
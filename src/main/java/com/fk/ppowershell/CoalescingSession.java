@@ -0,0 +1,163 @@
+package com.fk.ppowershell;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.fk.ppowershell.Constant.*;
+
+/**
+ 合并执行：包装一个会话，并发提交的相同脚本（相同的脚本和参数）只执行一次，所有调用方得到同一份输出
+ 1、先到的业务线程执行脚本，在合并窗口内到达的相同请求等待其结果
+ 2、执行结束后不保留任何结果，之后的请求重新执行
+ */
+public final class CoalescingSession implements PowerShellSession {
+    private static final Logger log = Logger.getLogger(CoalescingSession.class.getName());
+    private final PowerShellSession session;
+    private final BiFunction<String, String, ?> keyFunction;
+    private final ConcurrentHashMap<Object, Flight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+    //Config values
+    private long coalesceWindow = 0;
+
+    private CoalescingSession(PowerShellSession session, BiFunction<String, String, ?> keyFunction) {
+        this.session = session;
+        this.keyFunction = keyFunction;
+    }
+
+    public void configuration(Map<String, String> config) {
+        try {
+            if (config == null) {
+                config = new HashMap<>();
+            }
+            Properties properties = PowerShellConfig.getConfig();
+            this.coalesceWindow = Long.parseLong(config.get(COALESCE_WINDOW) != null ? config.get(COALESCE_WINDOW)
+                    : properties.getProperty(COALESCE_WINDOW));
+        } catch (Exception nfe) {
+            log.log(Level.WARNING, "Could not read configuration. Using default values.", nfe);
+        }
+    }
+
+    public static CoalescingSession wrap(PowerShellSession session) {
+        return wrap(session, null);
+    }
+
+    public static CoalescingSession wrap(PowerShellSession session, Map<String, String> config) {
+        return wrap(session, config, (script, params) -> script + '\0' + (params == null ? "" : params));
+    }
+
+    /**
+     * @param session     The session executing the scripts, closed with this session
+     * @param config      Overrides coalesceWindow of pps.properties, may be null
+     * @param keyFunction Maps the script text, or the "file:" prefixed path, and the params to the key of the calls
+     *                    that share one execution, e.g. to ignore a parameter that does not change the output
+     */
+    public static CoalescingSession wrap(PowerShellSession session, Map<String, String> config, BiFunction<String, String, ?> keyFunction) {
+        CoalescingSession coalescingSession = new CoalescingSession(session, keyFunction);
+        coalescingSession.configuration(config);
+        return coalescingSession;
+    }
+
+    @Override
+    public PSResponse executeScriptFile(String scriptPath) {
+        return executeScriptFile(scriptPath, "");
+    }
+
+    @Override
+    public PSResponse executeScriptFile(String scriptPath, String params) {
+        return coalesce(keyFunction.apply("file:" + scriptPath, params), () -> session.executeScriptFile(scriptPath, params));
+    }
+
+    @Override
+    public PSResponse executeScriptText(String script) {
+        return executeScriptText(script, "");
+    }
+
+    @Override
+    public PSResponse executeScriptText(String script, String params) {
+        return coalesce(keyFunction.apply(script, params), () -> session.executeScriptText(script, params));
+    }
+
+    private PSResponse coalesce(Object key, Supplier<PSResponse> execution) {
+        while (true) {
+            Flight flight = inFlight.get(key);
+            if (flight != null && flight.isJoinable(coalesceWindow)) {
+                collapsed.incrementAndGet();
+                return flight.await();
+            }
+            Flight leader = new Flight();
+            boolean registered = flight == null ? inFlight.putIfAbsent(key, leader) == null : inFlight.replace(key, flight, leader);
+            if (!registered) {
+                continue;
+            }
+            executions.incrementAndGet();
+            try {
+                PSResponse response = execution.get();
+                leader.response.complete(response);
+                return response;
+            } catch (RuntimeException | Error e) {
+                //The callers that joined would wait forever otherwise
+                leader.response.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, leader);
+            }
+        }
+    }
+
+    //Calls that executed the script
+    public long getExecutionCount() {
+        return executions.get();
+    }
+
+    //Calls that received the output of another call
+    public long getCollapsedCount() {
+        return collapsed.get();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return session.isAlive();
+    }
+
+    @Override
+    public void close() {
+        session.close();
+    }
+
+    private static final class Flight {
+        private final CompletableFuture<PSResponse> response = new CompletableFuture<>();
+        private final long startedAt = System.nanoTime();
+
+        //0 joins the execution until it completes
+        private boolean isJoinable(long windowMillis) {
+            return windowMillis <= 0 || System.nanoTime() - startedAt < TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        }
+
+        private PSResponse await() {
+            try {
+                PSResponse shared = response.join();
+                //A copy for every caller, the response is mutable
+                return shared == null ? null : new PSResponse(shared);
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.fk.ppowershell;
+
+/**
+ The measures of one command, in nanoseconds
+ */
+public final class CommandSample {
+    private final String source;
+    private final long lockWaitTime;
+    private final long writeTime;
+    private final long executionTime;
+    private final long outputLength;
+    private final boolean timeout;
+    private final boolean error;
+
+    public CommandSample(String source, long lockWaitTime, long writeTime, long executionTime, long outputLength, boolean timeout, boolean error) {
+        this.source = source;
+        this.lockWaitTime = lockWaitTime;
+        this.writeTime = writeTime;
+        this.executionTime = executionTime;
+        this.outputLength = outputLength;
+        this.timeout = timeout;
+        this.error = error;
+    }
+
+    //The metrics name of the session, e.g. Control-1234
+    public String getSource() {
+        return source;
+    }
+
+    public long getLockWaitTime() {
+        return lockWaitTime;
+    }
+
+    public long getWriteTime() {
+        return writeTime;
+    }
+
+    //From the end of the write until the output was complete
+    public long getExecutionTime() {
+        return executionTime;
+    }
+
+    //Characters of the output, 0 when it was streamed
+    public long getOutputLength() {
+        return outputLength;
+    }
+
+    public boolean isTimeout() {
+        return timeout;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "CommandSample{" +
+                "source='" + source + '\'' +
+                ", lockWaitTime=" + lockWaitTime +
+                ", writeTime=" + writeTime +
+                ", executionTime=" + executionTime +
+                ", outputLength=" + outputLength +
+                ", timeout=" + timeout +
+                ", error=" + error +
+                '}';
+    }
+}
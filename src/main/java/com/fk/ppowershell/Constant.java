@@ -8,10 +8,43 @@ public interface Constant {
     String MAX_WAIT_TIME = "maxWaitTime";
     String TRY_LOCK_TIME = "tryLockTime";
     String IS_ADD_LOCK = "isAddLock";
+    String IS_PIPELINED = "isPipelined";
+    String IS_CANCELLABLE = "isCancellable";
+    String IS_SEPARATE_ERROR_STREAM = "isSeparateErrorStream";
+    String MAX_ERROR_SIZE = "maxErrorSize";
+    String MAX_INLINE_SCRIPT_SIZE = "maxInlineScriptSize";
+    String SCRIPT_CACHE_SIZE = "scriptCacheSize";
+    String HEAD_EXPIRE_TIME = "headExpireTime";
+    String HANDLER_THREADS = "handlerThreads";
+    String HANDLER_QUEUE_SIZE = "handlerQueueSize";
+    String HANDLER_REJECT_POLICY = "handlerRejectPolicy";
+    //No longer waited for, the sessions are ready as soon as the process answers, see START_TIMEOUT
+    @Deprecated
     String START_PROCESS_WAIT_TIME = "startProcessWaitTime";
+    String START_TIMEOUT = "startTimeout";
+    String CLOSE_TIMEOUT = "closeTimeout";
+    String DRAIN_TIMEOUT = "drainTimeout";
+    String METRICS_JMX = "metricsJmx";
+    String LOG_EXECUTION_TIME = "logExecutionTime";
+    String POOL_MIN_SIZE = "poolMinSize";
+    String POOL_MAX_SIZE = "poolMaxSize";
+    String POOL_SPARE_SIZE = "poolSpareSize";
+    String POOL_IDLE_TIMEOUT = "poolIdleTimeout";
+    String POOL_BORROW_TIMEOUT = "poolBorrowTimeout";
+    String POOL_CLOSE_TIMEOUT = "poolCloseTimeout";
+    String RESULT_CACHE_TTL = "resultCacheTtl";
+    String RESULT_CACHE_MAX_WEIGHT = "resultCacheMaxWeight";
+    String COALESCE_WINDOW = "coalesceWindow";
+    String BATCH_WINDOW = "batchWindow";
+    String BATCH_MAX_SIZE = "batchMaxSize";
     boolean IS_WINDOWS = System.getProperty("os.name").toLowerCase().contains("win");
     String IMPL = "IMPL";
     String END_SCRIPT_STRING = "--END-JPOWERSHELL-SCRIPT--";
     String START_SCRIPT_STRING = "--START-JPOWERSHELL-SCRIPT--";
+    String START_ITEM_STRING = "--START-JPOWERSHELL-ITEM--";
+    String END_ITEM_STRING = "--END-JPOWERSHELL-ITEM--";
+    String ERROR_ITEM_STRING = "--ERROR-JPOWERSHELL-ITEM--";
+    String END_ERROR_STRING = "--END-JPOWERSHELL-ERROR--";
+    String CANCEL_SCRIPT_STRING = "--CANCEL-JPOWERSHELL-SCRIPT--";
     Character DOUBLE_QUOTE = '"';
 }
\ No newline at end of file
@@ -0,0 +1,194 @@
+package com.fk.ppowershell;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ Reads the PowerShell output line by line at byte level, for an ASCII compatible charset.
+ Lines are compared with the frame markers without being decoded, the lines kept as payload
+ are decoded once when the frame is taken. Buffers and the decoder are reused between frames.
+
+ Usage: after {@link #nextLine()} the current line is either kept with {@link #keepLine()},
+ or dropped by the next call to {@link #nextLine()}; {@link #takePayload()} returns the kept lines
+ */
+public final class FrameReader {
+    private static final int BUFFER_SIZE = 8192;
+    //Larger buffers are released after the frame, so a single huge output does not stay on the heap
+    private static final int MAX_RETAINED_SIZE = 1 << 20;
+    private final InputStream in;
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+    private final byte[] lineSeparator;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    //Kept lines followed by the current line
+    private byte[] data = new byte[BUFFER_SIZE];
+    private int payloadLength;
+    private int length;
+    private CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private volatile long bytesRead;
+
+    public FrameReader(InputStream in) {
+        this(in, Charset.defaultCharset());
+    }
+
+    public FrameReader(InputStream in, Charset charset) {
+        this.in = in;
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.lineSeparator = "\r\n".getBytes(charset);
+    }
+
+    //Encodes a marker once, to compare it with lines through lineEquals
+    public byte[] encode(String marker) {
+        return marker.getBytes(charset);
+    }
+
+    /**
+     * Reads the next line, blocking until it is complete. The line terminator is not part of the line
+     *
+     * @return false at the end of the stream
+     */
+    public boolean nextLine() throws IOException {
+        length = payloadLength;
+        while (true) {
+            if (position == limit) {
+                int read = in.read(buffer, 0, buffer.length);
+                if (read <= 0) {
+                    position = limit = 0;
+                    //The last line may not be terminated
+                    return length > payloadLength;
+                }
+                position = 0;
+                limit = read;
+                bytesRead += read;
+            }
+            int newline = position;
+            while (newline < limit && buffer[newline] != '\n') {
+                newline++;
+            }
+            append(buffer, position, newline - position);
+            if (newline < limit) {
+                position = newline + 1;
+                if (length > payloadLength && data[length - 1] == '\r') {
+                    length--;
+                }
+                return true;
+            }
+            position = limit;
+        }
+    }
+
+    //Bytes read from the stream so far, readable from any thread
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public boolean lineEquals(byte[] marker) {
+        if (length - payloadLength != marker.length) {
+            return false;
+        }
+        for (int i = 0; i < marker.length; i++) {
+            if (data[payloadLength + i] != marker[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean lineStartsWith(byte[] marker) {
+        if (length - payloadLength < marker.length) {
+            return false;
+        }
+        for (int i = 0; i < marker.length; i++) {
+            if (data[payloadLength + i] != marker[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Decodes the current line
+    public String line() {
+        return decode(payloadLength, length, false);
+    }
+
+    //Decodes the current line into a reused buffer, only valid until the next call to this reader
+    public CharSequence lineView() {
+        decodeChars(payloadLength, length);
+        chars.flip();
+        return chars;
+    }
+
+    //Adds the current line to the payload
+    public void keepLine() {
+        append(lineSeparator, 0, lineSeparator.length);
+        payloadLength = length;
+    }
+
+    /**
+     * @return The kept lines separated by CRLF, without trailing whitespace
+     */
+    public String takePayload() {
+        String payload = decode(0, payloadLength, true);
+        discardPayload();
+        return payload;
+    }
+
+    public void discardPayload() {
+        payloadLength = length = 0;
+        if (data.length > MAX_RETAINED_SIZE) {
+            data = new byte[BUFFER_SIZE];
+        }
+        if (chars.capacity() > MAX_RETAINED_SIZE) {
+            chars = CharBuffer.allocate(BUFFER_SIZE);
+        }
+    }
+
+    private void append(byte[] source, int offset, int count) {
+        if (length + count > data.length) {
+            byte[] grown = new byte[Math.max(data.length * 2, length + count)];
+            System.arraycopy(data, 0, grown, 0, length);
+            data = grown;
+        }
+        System.arraycopy(source, offset, data, length, count);
+        length += count;
+    }
+
+    private String decode(int from, int to, boolean trim) {
+        int end = decodeChars(from, to);
+        char[] decoded = chars.array();
+        if (trim) {
+            while (end > 0 && isWhitespace(decoded[end - 1])) {
+                end--;
+            }
+        }
+        return new String(decoded, 0, end);
+    }
+
+    private int decodeChars(int from, int to) {
+        int maxChars = (int) Math.ceil((to - from) * (double) decoder.maxCharsPerByte());
+        if (chars.capacity() < maxChars) {
+            chars = CharBuffer.allocate(maxChars);
+        }
+        chars.clear();
+        decoder.reset();
+        ByteBuffer bytes = ByteBuffer.wrap(data, from, to - from);
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        return chars.position();
+    }
+
+    //Same characters as the regex class \s
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
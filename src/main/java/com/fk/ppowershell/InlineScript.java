@@ -0,0 +1,86 @@
+package com.fk.ppowershell;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ Builds a one-line command that carries the script body in-band, Base64 encoded,
+ so that no temporary .ps1 file is written for the script.
+ The script runs in its own scope like a script file, and the frame lines are written
+ in a finally block, so they are emitted even if the script stops with a terminating error
+ */
+public final class InlineScript {
+
+    private InlineScript() {
+    }
+
+    /**
+     * @param maxInlineScriptSize Maximum script length in characters, 0 disables inline scripts
+     * @return true if the script should be sent in-band rather than through a temporary file
+     */
+    public static boolean fits(String script, int maxInlineScriptSize) {
+        return script.length() <= maxInlineScriptSize;
+    }
+
+    public static String command(String script, String params, String... trailers) {
+        return command(new String[0], script, params, trailers);
+    }
+
+    /**
+     * @param headers  Lines written before the script output
+     * @param trailers Lines written after the script output
+     * @return The command to write to the PowerShell process
+     */
+    public static String command(String[] headers, String script, String params, String... trailers) {
+        return frame(headers, call(script, params), trailers);
+    }
+
+    //A statement that runs the script in its own scope
+    public static String call(String script, String params) {
+        return "& " + scriptBlock(script) + (params == null || params.isEmpty() ? "" : " " + params);
+    }
+
+    /**
+     * @param statement A statement such as one of {@link ScriptCache#invocation(String, String)}
+     * @return The command running the statement between the header and trailer lines
+     */
+    public static String frame(String[] headers, String statement, String... trailers) {
+        return frameWithStatus(headers, statement, null, null, trailers);
+    }
+
+    /**
+     * @param status  A statement run right after the statement, while $? is still its status, may be null
+     * @param failure Statements run instead if the statement stops with a terminating error, $_ is the error, may be null
+     * @see #frame(String[], String, String...)
+     */
+    public static String frameWithStatus(String[] headers, String statement, String status, String failure, String... trailers) {
+        StringBuilder command = new StringBuilder(statement.length() + 160);
+        command.append("try { ");
+        for (String header : headers) {
+            command.append(literal(header)).append("; ");
+        }
+        command.append(statement);
+        if (status != null) {
+            command.append("; ").append(status);
+        }
+        if (failure != null) {
+            command.append(" } catch { ").append(failure);
+        }
+        command.append(" } finally { ");
+        for (int i = 0; i < trailers.length; i++) {
+            command.append(i == 0 ? "" : "; ").append(literal(trailers[i]));
+        }
+        return command.append(" }").toString();
+    }
+
+    //An expression that evaluates to the script as a ScriptBlock
+    public static String scriptBlock(String script) {
+        return "([ScriptBlock]::Create([Text.Encoding]::UTF8.GetString([Convert]::FromBase64String('"
+                + Base64.getEncoder().encodeToString(script.getBytes(StandardCharsets.UTF_8)) + "'))))";
+    }
+
+    //A single quoted PowerShell string literal
+    public static String literal(String value) {
+        return '\'' + value.replace("'", "''") + '\'';
+    }
+}
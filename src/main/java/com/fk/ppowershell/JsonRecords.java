@@ -0,0 +1,392 @@
+package com.fk.ppowershell;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ Structured output: the script output is converted by PowerShell to compressed JSON, one object per line,
+ and every line is decoded as soon as it is read.
+ Objects are decoded to LinkedHashMap, arrays to ArrayList, numbers to Long or Double,
+ and can be bound to a POJO whose fields match the property names, ignoring case
+ */
+public final class JsonRecords {
+    private static final int DEPTH = 5;
+    private static final Map<Class<?>, Map<String, Field>> FIELDS = new ConcurrentHashMap<>();
+
+    private JsonRecords() {
+    }
+
+    /**
+     * Runs the script in its own scope and writes every output object as one line of JSON.
+     * The text only depends on the script, so the session caches it once, the parameters of the call
+     * are passed to the wrapper and forwarded to the script
+     */
+    public static String wrap(String script) {
+        return "& " + InlineScript.scriptBlock(script) + " @args"
+                + " | ForEach-Object { ConvertTo-Json -InputObject $_ -Compress -Depth " + DEPTH + " }";
+    }
+
+    /**
+     * @return Map, List, String, Long, Double, Boolean or null
+     * @throws IllegalArgumentException if the text is not a single JSON value
+     */
+    public static Object parse(CharSequence json) {
+        Parser parser = new Parser(json);
+        Object value = parser.value();
+        parser.skipWhitespace();
+        if (parser.position != json.length()) {
+            throw parser.error("Unexpected trailing characters");
+        }
+        return value;
+    }
+
+    /**
+     * Converts a decoded value to the given type, binding objects to the fields of a POJO
+     * which must have a no-argument constructor. Unknown properties are ignored
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T bind(Object value, Class<T> type) {
+        return (T) convert(value, type);
+    }
+
+    private static Object convert(Object value, Class<?> type) {
+        if (value == null) {
+            return null;
+        }
+        if (type == Object.class || (type.isInstance(value) && !type.isPrimitive())) {
+            return value;
+        }
+        if (type == String.class) {
+            return value.toString();
+        }
+        if (type == boolean.class || type == Boolean.class) {
+            return value instanceof Boolean ? value : Boolean.valueOf(value.toString());
+        }
+        if (value instanceof Number || value instanceof String) {
+            Object number = convertNumber(value, type);
+            if (number != null) {
+                return number;
+            }
+        }
+        if (type.isEnum()) {
+            Object[] constants = type.getEnumConstants();
+            for (Object constant : constants) {
+                if (((Enum<?>) constant).name().equalsIgnoreCase(value.toString())) {
+                    return constant;
+                }
+            }
+            if (value instanceof Number && ((Number) value).intValue() >= 0 && ((Number) value).intValue() < constants.length) {
+                return constants[((Number) value).intValue()];
+            }
+        }
+        if (value instanceof Map) {
+            return bindObject((Map<?, ?>) value, type);
+        }
+        throw new IllegalArgumentException("Cannot convert " + value.getClass().getSimpleName() + " to " + type.getName());
+    }
+
+    //Null if the type is not a number type
+    private static Object convertNumber(Object value, Class<?> type) {
+        if (!Number.class.isAssignableFrom(type) && !(type.isPrimitive() && type != char.class)) {
+            return null;
+        }
+        try {
+            BigDecimal number = value instanceof Number ? new BigDecimal(value.toString()) : new BigDecimal(value.toString().trim());
+            if (type == int.class || type == Integer.class) {
+                return number.intValue();
+            } else if (type == long.class || type == Long.class) {
+                return number.longValue();
+            } else if (type == double.class || type == Double.class) {
+                return number.doubleValue();
+            } else if (type == float.class || type == Float.class) {
+                return number.floatValue();
+            } else if (type == short.class || type == Short.class) {
+                return number.shortValue();
+            } else if (type == byte.class || type == Byte.class) {
+                return number.byteValue();
+            } else if (type == BigDecimal.class) {
+                return number;
+            } else if (type == BigInteger.class) {
+                return number.toBigInteger();
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Cannot convert " + value + " to " + type.getName(), e);
+        }
+        return null;
+    }
+
+    private static Object bindObject(Map<?, ?> properties, Class<?> type) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            Object target = constructor.newInstance();
+            Map<String, Field> fields = FIELDS.computeIfAbsent(type, JsonRecords::fieldsOf);
+            for (Map.Entry<?, ?> property : properties.entrySet()) {
+                Field field = fields.get(property.getKey().toString().toLowerCase(Locale.ROOT));
+                Object converted = field == null ? null : convert(property.getValue(), field.getType());
+                if (converted != null) {
+                    field.set(target, converted);
+                }
+            }
+            return target;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot bind JSON object to " + type.getName(), e);
+        }
+    }
+
+    private static Map<String, Field> fieldsOf(Class<?> type) {
+        Map<String, Field> fields = new HashMap<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || Modifier.isFinal(modifiers)) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.putIfAbsent(field.getName().toLowerCase(Locale.ROOT), field);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     A line sink that decodes every line as a JSON record and passes it on.
+     Lines that are not JSON, such as error messages, are collected and returned as an error response
+     */
+    public static final class Decoder implements Consumer<CharSequence> {
+        private final Consumer<Object> records;
+        private final StringBuilder others = new StringBuilder();
+
+        public Decoder(Consumer<Object> records) {
+            this.records = records;
+        }
+
+        @Override
+        public void accept(CharSequence line) {
+            Object record;
+            try {
+                record = parse(line);
+            } catch (IllegalArgumentException e) {
+                if (others.length() > 0) {
+                    others.append("\r\n");
+                }
+                others.append(line);
+                return;
+            }
+            records.accept(record);
+        }
+
+        //The response of the execution, replaced by the lines that were not JSON if there are some
+        public PSResponse complete(PSResponse response) {
+            if (response.isError() || response.isTimeout() || others.toString().trim().isEmpty()) {
+                return response;
+            }
+            return new PSResponse(true, others.toString().trim());
+        }
+    }
+
+    private static final class Parser {
+        private final CharSequence json;
+        private int position;
+
+        private Parser(CharSequence json) {
+            this.json = json;
+        }
+
+        private Object value() {
+            skipWhitespace();
+            if (position >= json.length()) {
+                throw error("Unexpected end of JSON");
+            }
+            char c = json.charAt(position);
+            switch (c) {
+                case '{':
+                    return object();
+                case '[':
+                    return array();
+                case '"':
+                    return string();
+                case 't':
+                    return literal("true", Boolean.TRUE);
+                case 'f':
+                    return literal("false", Boolean.FALSE);
+                case 'n':
+                    return literal("null", null);
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        return number();
+                    }
+                    throw error("Unexpected character '" + c + "'");
+            }
+        }
+
+        private Map<String, Object> object() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("Expected property name");
+                }
+                String name = string();
+                skipWhitespace();
+                expect(':');
+                object.put(name, value());
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    return object;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        private List<Object> array() {
+            List<Object> array = new ArrayList<>();
+            position++;
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                array.add(value());
+                skipWhitespace();
+                char c = next();
+                if (c == ']') {
+                    return array;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        }
+
+        private String string() {
+            position++;
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                char escaped = next();
+                switch (escaped) {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        if (position + 4 > json.length()) {
+                            throw error("Invalid unicode escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(json.subSequence(position, position + 4).toString(), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid unicode escape");
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            }
+        }
+
+        private Object number() {
+            int start = position;
+            boolean decimal = false;
+            while (position < json.length()) {
+                char c = json.charAt(position);
+                if (c == '.' || c == 'e' || c == 'E') {
+                    decimal = true;
+                } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                    break;
+                }
+                position++;
+            }
+            String number = json.subSequence(start, position).toString();
+            try {
+                if (!decimal) {
+                    try {
+                        return Long.parseLong(number);
+                    } catch (NumberFormatException e) {
+                        //Larger than a long
+                    }
+                }
+                return Double.parseDouble(number);
+            } catch (NumberFormatException e) {
+                throw error("Invalid number " + number);
+            }
+        }
+
+        private Object literal(String literal, Object value) {
+            for (int i = 0; i < literal.length(); i++) {
+                if (next() != literal.charAt(i)) {
+                    throw error("Invalid literal");
+                }
+            }
+            return value;
+        }
+
+        private void expect(char expected) {
+            if (next() != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        private char peek() {
+            return position < json.length() ? json.charAt(position) : 0;
+        }
+
+        private char next() {
+            if (position >= json.length()) {
+                throw error("Unexpected end of JSON");
+            }
+            return json.charAt(position++);
+        }
+
+        private void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.fk.ppowershell;
+
+/**
+ Receives the measures of every command of a session, on the thread completing the command:
+ the calling thread for Block and the pool, the reader thread for Control and Nonblocking.
+ Must be fast and must not throw, it is called on the command path
+ */
+public interface MetricsListener {
+
+    void onCommand(CommandSample sample);
+
+    //The command was rejected because the session lock was not obtained in time
+    default void onLockRejected(String source) {
+    }
+}
@@ -4,6 +4,12 @@ public class PSResponse {
     boolean error;
     boolean timeout;
     String outPut;
+    //Separate error stream only, null when the errors are merged into the output
+    String errorOutput;
+    //$? once the script has run, null if it was not reported
+    Boolean lastStatus;
+    //$LASTEXITCODE once the script has run, null if no native program set it
+    Integer lastExitCode;
 
     public PSResponse(boolean error, boolean timeout, String outPut) {
         this.error = error;
@@ -27,6 +33,33 @@ public class PSResponse {
     public PSResponse() {
     }
 
+    /**
+     * @param errorOutput  The lines the script wrote to the error stream
+     * @param lastStatus   $? at the end of the script
+     * @param lastExitCode $LASTEXITCODE at the end of the script
+     */
+    public PSResponse(String outPut, String errorOutput, Boolean lastStatus, Integer lastExitCode) {
+        this.outPut = outPut;
+        this.errorOutput = errorOutput;
+        this.lastStatus = lastStatus;
+        this.lastExitCode = lastExitCode;
+    }
+
+    //A copy of the response, the response is mutable
+    public PSResponse(PSResponse response) {
+        this(response.outPut, response.errorOutput, response.lastStatus, response.lastExitCode);
+        this.error = response.error;
+        this.timeout = response.timeout;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    public boolean isTimeout() {
+        return timeout;
+    }
+
     public String getOutPut() {
         return outPut;
     }
@@ -35,12 +68,27 @@ public class PSResponse {
         this.outPut = outPut;
     }
 
+    public String getErrorOutput() {
+        return errorOutput;
+    }
+
+    public Boolean getLastStatus() {
+        return lastStatus;
+    }
+
+    public Integer getLastExitCode() {
+        return lastExitCode;
+    }
+
     @Override
     public String toString() {
         return "PSResponse{" +
                 "error=" + error +
                 ", timeout=" + timeout +
                 ", outPut='" + outPut + '\'' +
+                (errorOutput == null ? "" : ", errorOutput='" + errorOutput + '\'') +
+                (lastStatus == null ? "" : ", lastStatus=" + lastStatus) +
+                (lastExitCode == null ? "" : ", lastExitCode=" + lastExitCode) +
                 '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+package com.fk.ppowershell;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ A script written to a session that can be cancelled while it runs: PowerShell stops its pipeline
+ and the session is free again, with its state, without restarting the process.
+ A cancelled script completes at once with an error response, the output it writes until it has stopped is discarded
+ */
+public final class PowerShellCall {
+    private final CompletableFuture<PSResponse> response;
+    private final Runnable canceller;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param canceller Asks PowerShell to stop the script
+     */
+    public PowerShellCall(CompletableFuture<PSResponse> response, Runnable canceller) {
+        this.response = response;
+        this.canceller = canceller;
+    }
+
+    //A call that could not be written, it can not be cancelled
+    public static PowerShellCall completed(PSResponse response) {
+        return new PowerShellCall(CompletableFuture.completedFuture(response), () -> {
+        });
+    }
+
+    public CompletableFuture<PSResponse> getResponse() {
+        return response;
+    }
+
+    /**
+     * Returns at once, PowerShell stops the script in the background
+     *
+     * @return false if the script had already completed
+     */
+    public boolean cancel() {
+        cancelled = true;
+        if (!response.complete(new PSResponse(true, "Script was cancelled"))) {
+            cancelled = false;
+            return false;
+        }
+        canceller.run();
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
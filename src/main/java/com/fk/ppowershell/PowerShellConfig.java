@@ -23,18 +23,20 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public final class PowerShellConfig {
-    private static Properties config;
+    private static volatile Properties config;
 
     public static Properties getConfig() {
         if (config == null) {
             synchronized (PowerShellConfig.class) {
                 if (config == null) {
-                    config = new Properties();
+                    //Published only once loaded, sessions opened in parallel must not see it empty
+                    Properties properties = new Properties();
                     try {
-                        config.load(PowerShellConfig.class.getClassLoader().getResourceAsStream("pps.properties"));
+                        properties.load(PowerShellConfig.class.getClassLoader().getResourceAsStream("pps.properties"));
                     } catch (IOException e) {
                         Logger.getLogger(PowerShellNonblocking.class.getName()).log(Level.SEVERE, "Cannot read config values from file : pps.properties", e);
                     }
+                    config = properties;
                 }
             }
         }
@@ -0,0 +1,321 @@
+package com.fk.ppowershell;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ The measures of one session or pool: histograms of the lock wait, write and execution times,
+ counters of commands, errors, timeouts and lock rejections, and gauges read when they are queried.
+ Registered as the MBean com.fk.ppowershell:type=&lt;type&gt;,name=&lt;name&gt; when metricsJmx is true.
+ The name is kept for the life of the session, the Pid attribute follows the process when it is replaced
+ */
+public final class PowerShellMetrics implements PowerShellMetricsMBean {
+    private static final Logger log = Logger.getLogger(PowerShellMetrics.class.getName());
+    private static final LongSupplier ZERO = () -> 0;
+    private final String type;
+    private final String name;
+    private final Histogram lockWaitTime = new Histogram();
+    private final Histogram writeTime = new Histogram();
+    private final Histogram executionTime = new Histogram();
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder lockRejections = new LongAdder();
+    private final LongAdder recycles = new LongAdder();
+    private final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile LongSupplier outputBytes = ZERO;
+    private volatile LongSupplier headCacheDepth = ZERO;
+    private volatile LongSupplier handlerBacklog = ZERO;
+    private volatile LongSupplier droppedOutputs = ZERO;
+    private volatile LongSupplier idleSessions = ZERO;
+    private volatile LongSupplier borrowedSessions = ZERO;
+    private volatile LongSupplier pid = ZERO;
+    private ObjectName objectName;
+
+    /**
+     * @param type Kind of session, e.g. Control
+     * @param name Unique among the sessions of that kind, e.g. the PID
+     */
+    public PowerShellMetrics(String type, String name) {
+        this.type = type;
+        this.name = name;
+    }
+
+    public String getSource() {
+        return type + "-" + name;
+    }
+
+    public void recordLockWait(long nanos) {
+        lockWaitTime.record(nanos);
+    }
+
+    /**
+     * Records a command that was written to the process, whatever its outcome
+     *
+     * @param lockWaitNanos Also recorded by {@link #recordLockWait(long)} if the caller waited for a lock
+     * @param writeNanos    Negative if the write was recorded on its own by {@link #recordWrite(long)}
+     */
+    public void recordCommand(long lockWaitNanos, long writeNanos, long executionNanos, long outputLength, boolean timeout, boolean error) {
+        commands.increment();
+        if (writeNanos >= 0) {
+            writeTime.record(writeNanos);
+        }
+        executionTime.record(executionNanos);
+        if (timeout) {
+            timeouts.increment();
+        } else if (error) {
+            errors.increment();
+        }
+        if (!listeners.isEmpty()) {
+            CommandSample sample = new CommandSample(getSource(), lockWaitNanos, writeNanos, executionNanos, outputLength, timeout, error);
+            for (MetricsListener listener : listeners) {
+                try {
+                    listener.onCommand(sample);
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Metrics listener failed", e);
+                }
+            }
+        }
+    }
+
+    //For sessions whose output is not read by the writing thread
+    public void recordWrite(long nanos) {
+        writeTime.record(nanos);
+    }
+
+    public void recordLockRejected() {
+        lockRejections.increment();
+        for (MetricsListener listener : listeners) {
+            try {
+                listener.onLockRejected(getSource());
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Metrics listener failed", e);
+            }
+        }
+    }
+
+    //The process was replaced because the output of a timed out command was not read in time
+    public void recordRecycle() {
+        recycles.increment();
+    }
+
+    public void addListener(MetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(MetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void setOutputBytes(LongSupplier outputBytes) {
+        this.outputBytes = outputBytes;
+    }
+
+    public void setHeadCacheDepth(LongSupplier headCacheDepth) {
+        this.headCacheDepth = headCacheDepth;
+    }
+
+    public void setHandlerBacklog(LongSupplier handlerBacklog) {
+        this.handlerBacklog = handlerBacklog;
+    }
+
+    public void setDroppedOutputs(LongSupplier droppedOutputs) {
+        this.droppedOutputs = droppedOutputs;
+    }
+
+    public void setIdleSessions(LongSupplier idleSessions) {
+        this.idleSessions = idleSessions;
+    }
+
+    public void setBorrowedSessions(LongSupplier borrowedSessions) {
+        this.borrowedSessions = borrowedSessions;
+    }
+
+    public void setPid(LongSupplier pid) {
+        this.pid = pid;
+    }
+
+    public Histogram getLockWaitTime() {
+        return lockWaitTime;
+    }
+
+    public Histogram getWriteTime() {
+        return writeTime;
+    }
+
+    public Histogram getExecutionTime() {
+        return executionTime;
+    }
+
+    //Publish as an MBean, a failure is logged and ignored
+    public synchronized void register() {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName candidate = new ObjectName("com.fk.ppowershell:type=" + type + ",name=" + name);
+            server.registerMBean(this, candidate);
+            objectName = candidate;
+        } catch (JMException e) {
+            log.log(Level.WARNING, "Could not register the metrics MBean of " + getSource(), e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.log(Level.FINE, "Could not unregister the metrics MBean of " + getSource(), e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public long getCommandCount() {
+        return commands.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getLockRejectedCount() {
+        return lockRejections.sum();
+    }
+
+    @Override
+    public long getRecycleCount() {
+        return recycles.sum();
+    }
+
+    @Override
+    public long getOutputBytes() {
+        return outputBytes.getAsLong();
+    }
+
+    @Override
+    public long getLockWaitP50Micros() {
+        return micros(lockWaitTime.getPercentile(50));
+    }
+
+    @Override
+    public long getLockWaitP99Micros() {
+        return micros(lockWaitTime.getPercentile(99));
+    }
+
+    @Override
+    public long getLockWaitMaxMicros() {
+        return micros(lockWaitTime.getMax());
+    }
+
+    @Override
+    public long getWriteP50Micros() {
+        return micros(writeTime.getPercentile(50));
+    }
+
+    @Override
+    public long getWriteP99Micros() {
+        return micros(writeTime.getPercentile(99));
+    }
+
+    @Override
+    public long getWriteMaxMicros() {
+        return micros(writeTime.getMax());
+    }
+
+    @Override
+    public long getExecutionMeanMicros() {
+        return micros(executionTime.getMean());
+    }
+
+    @Override
+    public long getExecutionP50Micros() {
+        return micros(executionTime.getPercentile(50));
+    }
+
+    @Override
+    public long getExecutionP90Micros() {
+        return micros(executionTime.getPercentile(90));
+    }
+
+    @Override
+    public long getExecutionP99Micros() {
+        return micros(executionTime.getPercentile(99));
+    }
+
+    @Override
+    public long getExecutionP999Micros() {
+        return micros(executionTime.getPercentile(99.9));
+    }
+
+    @Override
+    public long getExecutionMaxMicros() {
+        return micros(executionTime.getMax());
+    }
+
+    @Override
+    public long getHeadCacheDepth() {
+        return headCacheDepth.getAsLong();
+    }
+
+    @Override
+    public long getHandlerBacklog() {
+        return handlerBacklog.getAsLong();
+    }
+
+    @Override
+    public long getDroppedOutputCount() {
+        return droppedOutputs.getAsLong();
+    }
+
+    @Override
+    public long getIdleSessions() {
+        return idleSessions.getAsLong();
+    }
+
+    @Override
+    public long getBorrowedSessions() {
+        return borrowedSessions.getAsLong();
+    }
+
+    @Override
+    public long getPid() {
+        return pid.getAsLong();
+    }
+
+    @Override
+    public void reset() {
+        lockWaitTime.reset();
+        writeTime.reset();
+        executionTime.reset();
+        commands.reset();
+        errors.reset();
+        timeouts.reset();
+        lockRejections.reset();
+        recycles.reset();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
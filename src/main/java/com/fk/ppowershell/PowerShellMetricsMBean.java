@@ -0,0 +1,59 @@
+package com.fk.ppowershell;
+
+/**
+ JMX view of {@link PowerShellMetrics}, times in microseconds.
+ Values that do not apply to the kind of session are 0
+ */
+public interface PowerShellMetricsMBean {
+
+    long getCommandCount();
+
+    long getErrorCount();
+
+    long getTimeoutCount();
+
+    long getLockRejectedCount();
+
+    long getRecycleCount();
+
+    long getOutputBytes();
+
+    long getLockWaitP50Micros();
+
+    long getLockWaitP99Micros();
+
+    long getLockWaitMaxMicros();
+
+    long getWriteP50Micros();
+
+    long getWriteP99Micros();
+
+    long getWriteMaxMicros();
+
+    long getExecutionMeanMicros();
+
+    long getExecutionP50Micros();
+
+    long getExecutionP90Micros();
+
+    long getExecutionP99Micros();
+
+    long getExecutionP999Micros();
+
+    long getExecutionMaxMicros();
+
+    long getHeadCacheDepth();
+
+    long getHandlerBacklog();
+
+    long getDroppedOutputCount();
+
+    long getIdleSessions();
+
+    long getBorrowedSessions();
+
+    //The process currently behind the session, it changes when the session is recycled
+    long getPid();
+
+    void reset();
+}
@@ -0,0 +1,405 @@
+package com.fk.ppowershell;
+
+import com.fk.ppowershell.control.PowerShellControl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.fk.ppowershell.Constant.*;
+
+/**
+ 会话池：预先启动若干powershell进程，业务线程借出会话执行，执行完毕归还
+ 1、始终保持 poolSpareSize 个空闲进程（外加正在排队的业务线程数），用于吸收突发请求
+ 2、会话总数不超过 poolMaxSize，空闲超过 poolIdleTimeout 的会话被回收，但不少于 poolMinSize
+ 3、借出或归还时进程已失效、执行超时的会话直接丢弃
+ 4、关闭会话池时，借出的会话在归还时关闭，超过 poolCloseTimeout 仍未归还的会话被强制关闭
+ */
+public final class PowerShellPool implements PowerShellSession {
+    private static final Logger log = Logger.getLogger(PowerShellPool.class.getName());
+    private static final long MAINTAIN_INTERVAL = 1;
+    private static final AtomicInteger POOL_SEQUENCE = new AtomicInteger();
+    private final Supplier<? extends PowerShellSession> factory;
+    //Most recently returned sessions are at the head, so the tail holds the longest idle ones
+    private final LinkedBlockingDeque<IdleSession> idle = new LinkedBlockingDeque<>();
+    private final Set<PowerShellSession> borrowed = ConcurrentHashMap.newKeySet();
+    //Idle, borrowed and still starting sessions
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger spawning = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private ScheduledExecutorService maintainer;
+    private ExecutorService spawner;
+    private volatile boolean closed = false;
+    //Config values
+    private int minSize = 1;
+    private int maxSize = 4;
+    private int spareSize = 1;
+    private int idleTimeout = 300;
+    private int borrowTimeout = 5;
+    private int closeTimeout = 10;
+    private boolean metricsJmx = true;
+    private final PowerShellMetrics metrics = new PowerShellMetrics("Pool", String.valueOf(POOL_SEQUENCE.incrementAndGet()));
+
+    private PowerShellPool(Supplier<? extends PowerShellSession> factory) {
+        this.factory = factory;
+    }
+
+    public void configuration(Map<String, String> config) {
+        try {
+            if (config == null) {
+                config = new HashMap<>();
+            }
+            Properties properties = PowerShellConfig.getConfig();
+            this.minSize = Integer.parseInt(config.get(POOL_MIN_SIZE) != null ? config.get(POOL_MIN_SIZE) : properties.getProperty(POOL_MIN_SIZE));
+            this.maxSize = Integer.parseInt(config.get(POOL_MAX_SIZE) != null ? config.get(POOL_MAX_SIZE) : properties.getProperty(POOL_MAX_SIZE));
+            this.spareSize = Integer.parseInt(config.get(POOL_SPARE_SIZE) != null ? config.get(POOL_SPARE_SIZE) : properties.getProperty(POOL_SPARE_SIZE));
+            this.idleTimeout = Integer.parseInt(config.get(POOL_IDLE_TIMEOUT) != null ? config.get(POOL_IDLE_TIMEOUT) : properties.getProperty(POOL_IDLE_TIMEOUT));
+            this.borrowTimeout = Integer.parseInt(config.get(POOL_BORROW_TIMEOUT) != null ? config.get(POOL_BORROW_TIMEOUT) : properties.getProperty(POOL_BORROW_TIMEOUT));
+            this.closeTimeout = Integer.parseInt(config.get(POOL_CLOSE_TIMEOUT) != null ? config.get(POOL_CLOSE_TIMEOUT) : properties.getProperty(POOL_CLOSE_TIMEOUT));
+            this.metricsJmx = Boolean.parseBoolean(config.get(METRICS_JMX) != null ? config.get(METRICS_JMX) : properties.getProperty(METRICS_JMX));
+        } catch (Exception nfe) {
+            log.log(Level.WARNING, "Could not read configuration. Using default values.", nfe);
+        }
+        if (maxSize < 1 || minSize > maxSize) {
+            throw new PowerShellException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+    }
+
+    public static PowerShellPool openPool() {
+        return openPool(PowerShellControl::openProcess);
+    }
+
+    public static PowerShellPool openPool(Supplier<? extends PowerShellSession> factory) {
+        return openPool(factory, null);
+    }
+
+    /**
+     * create a pool of powershell sessions
+     *
+     * @param factory Opens a new session, e.g. {@code PowerShellBlock::openProcess}
+     * @param config  Overrides the pool values of pps.properties, may be null
+     * @return PowerShell session pool
+     */
+    public static PowerShellPool openPool(Supplier<? extends PowerShellSession> factory, Map<String, String> config) {
+        PowerShellPool pool = new PowerShellPool(factory);
+        pool.configuration(config);
+        return pool.initialize();
+    }
+
+    private PowerShellPool initialize() {
+        this.spawner = Executors.newCachedThreadPool(daemonThreads("ppowershell-pool-spawner"));
+        this.maintainer = Executors.newSingleThreadScheduledExecutor(daemonThreads("ppowershell-pool-maintainer"));
+        //The first sessions boot in parallel right away
+        grow();
+        this.maintainer.scheduleWithFixedDelay(this::maintain, MAINTAIN_INTERVAL, MAINTAIN_INTERVAL, TimeUnit.SECONDS);
+        this.metrics.setIdleSessions(idle::size);
+        this.metrics.setBorrowedSessions(borrowed::size);
+        if (metricsJmx) {
+            this.metrics.register();
+        }
+        return this;
+    }
+
+    /**
+     * Wait until poolMinSize sessions are started, e.g. at application startup so that the first calls
+     * do not wait for a process to boot. The sessions are started in parallel when the pool is opened
+     *
+     * @return false if they are not all started within the timeout
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (idle.size() + borrowed.size() < minSize) {
+            checkState();
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        return true;
+    }
+
+    public PowerShellSession borrow() {
+        return borrow(borrowTimeout, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Borrow an idle session, waiting for one to be started or returned if necessary.
+     * The session must be handed back with {@link #returnSession(PowerShellSession)}
+     *
+     * @throws PowerShellException if no session becomes available within the timeout
+     */
+    public PowerShellSession borrow(long timeout, TimeUnit unit) {
+        checkState();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiting.incrementAndGet();
+        try {
+            while (true) {
+                IdleSession candidate = idle.pollFirst();
+                if (candidate == null) {
+                    grow();
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || (candidate = idle.pollFirst(remaining, TimeUnit.NANOSECONDS)) == null) {
+                        throw new PowerShellException("No PowerShell session available within " + timeout + " " + unit);
+                    }
+                }
+                if (candidate.session.isAlive()) {
+                    borrowed.add(candidate.session);
+                    return candidate.session;
+                }
+                discard(candidate.session);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PowerShellException("Interrupted while waiting for a PowerShell session", e);
+        } finally {
+            waiting.decrementAndGet();
+            grow();
+        }
+    }
+
+    public void returnSession(PowerShellSession session) {
+        if (session == null || !borrowed.remove(session)) {
+            //Unless it was closed by the pool after poolCloseTimeout
+            if (!closed) {
+                log.warning("Returned session does not belong to this pool");
+            }
+            return;
+        }
+        if (closed || !session.isAlive()) {
+            discard(session);
+            return;
+        }
+        idle.offerFirst(new IdleSession(session));
+        if (closed) {
+            drainIdle();
+        }
+    }
+
+    @Override
+    public PSResponse executeScriptFile(String scriptPath) {
+        return execute(session -> session.executeScriptFile(scriptPath));
+    }
+
+    @Override
+    public PSResponse executeScriptFile(String scriptPath, String params) {
+        return execute(session -> session.executeScriptFile(scriptPath, params));
+    }
+
+    @Override
+    public PSResponse executeScriptText(String script) {
+        return execute(session -> session.executeScriptText(script));
+    }
+
+    @Override
+    public PSResponse executeScriptText(String script, String params) {
+        return execute(session -> session.executeScriptText(script, params));
+    }
+
+    //The lock wait of the pool metrics is the borrow wait, a borrow timeout is a lock rejection
+    private PSResponse execute(Function<PowerShellSession, PSResponse> call) {
+        PowerShellSession session;
+        long borrowWait = System.nanoTime();
+        try {
+            session = borrow();
+        } catch (PowerShellException e) {
+            metrics.recordLockRejected();
+            return new PSResponse(true, e.getMessage());
+        }
+        borrowWait = System.nanoTime() - borrowWait;
+        metrics.recordLockWait(borrowWait);
+        PSResponse response = null;
+        long executionStart = System.nanoTime();
+        try {
+            response = call.apply(session);
+            return response;
+        } finally {
+            metrics.recordCommand(borrowWait, -1, System.nanoTime() - executionStart,
+                    response == null || response.getOutPut() == null ? 0 : response.getOutPut().length(),
+                    response != null && response.isTimeout(), response == null || response.isError());
+            //A timed out session may still deliver the stale output, do not hand it out again
+            if (response != null && response.isTimeout() && borrowed.remove(session)) {
+                discard(session);
+            } else {
+                returnSession(session);
+            }
+        }
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getBorrowedCount() {
+        return borrowed.size();
+    }
+
+    public int getTotalCount() {
+        return total.get();
+    }
+
+    //Measures of the calls through the pool, the sessions have their own
+    public PowerShellMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return !closed;
+    }
+
+    /**
+     * Close the idle sessions, the borrowed ones are closed when they are returned.
+     * Waits up to poolCloseTimeout seconds for them, then closes the sessions still borrowed
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        metrics.unregister();
+        maintainer.shutdownNow();
+        spawner.shutdown();
+        drainIdle();
+        if (!awaitReturned(closeTimeout, TimeUnit.SECONDS)) {
+            log.log(Level.WARNING, "{0} PowerShell sessions were not returned within {1} s, closing them",
+                    new Object[]{borrowed.size(), closeTimeout});
+        }
+        for (PowerShellSession session : borrowed) {
+            if (borrowed.remove(session)) {
+                discard(session);
+            }
+        }
+    }
+
+    //The calls in progress complete on their session, which returnSession then closes
+    private boolean awaitReturned(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!borrowed.isEmpty()) {
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Evict dead and long idle sessions, then top up the spares
+    private void maintain() {
+        try {
+            long idleDeadline = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(idleTimeout);
+            Iterator<IdleSession> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                IdleSession candidate = it.next();
+                boolean dead = !candidate.session.isAlive();
+                boolean expired = candidate.lastUsed < idleDeadline && total.get() > minSize && idle.size() > spareSize;
+                if ((dead || expired) && idle.remove(candidate)) {
+                    discard(candidate.session);
+                }
+            }
+            grow();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Unexpected error while maintaining the PowerShell pool", e);
+        }
+    }
+
+    //Start sessions until the spares cover the waiting callers, within the pool bounds
+    private void grow() {
+        if (closed) {
+            return;
+        }
+        int need = Math.max(spareSize + waiting.get() - idle.size() - spawning.get(), minSize - total.get());
+        while (need > 0) {
+            int current = total.get();
+            if (current >= maxSize) {
+                return;
+            }
+            if (total.compareAndSet(current, current + 1)) {
+                need--;
+                spawning.incrementAndGet();
+                try {
+                    spawner.execute(this::spawn);
+                } catch (Exception e) {
+                    spawning.decrementAndGet();
+                    total.decrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void spawn() {
+        try {
+            PowerShellSession session = factory.get();
+            idle.offerFirst(new IdleSession(session));
+            if (closed) {
+                drainIdle();
+            }
+        } catch (Exception e) {
+            total.decrementAndGet();
+            log.log(Level.WARNING, "Could not start a pooled PowerShell session", e);
+        } finally {
+            spawning.decrementAndGet();
+        }
+    }
+
+    private void drainIdle() {
+        IdleSession candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            discard(candidate.session);
+        }
+    }
+
+    private void discard(PowerShellSession session) {
+        total.decrementAndGet();
+        try {
+            session.close();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Unexpected error when closing pooled PowerShell session", e);
+        }
+    }
+
+    //Checks if the pool have been already closed
+    private void checkState() {
+        if (this.closed) {
+            throw new IllegalStateException("PowerShell pool is already closed. Please open a new pool.");
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger sequence = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static final class IdleSession {
+        private final PowerShellSession session;
+        private final long lastUsed = System.currentTimeMillis();
+
+        private IdleSession(PowerShellSession session) {
+            this.session = session;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.fk.ppowershell;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.fk.ppowershell.Constant.IS_WINDOWS;
+
+/**
+ Lifecycle of the PowerShell processes: the PID comes from the Process handle, a session is terminated
+ by a graceful exit, then destroy and destroyForcibly once the deadline has passed, and the processes it
+ started are reaped with it. The live sessions are tracked, a JVM shutdown hook closes the ones still open,
+ so that no pwsh process outlives the application. No other process is forked to kill one.
+ The handle methods of Java 9+ are called by reflection, on Java 8 the PID of the handshake is used and
+ the children can only be reaped on Windows, by taskkill, when the process has to be forced
+ */
+public final class PowerShellProcesses {
+    private static final Logger log = Logger.getLogger(PowerShellProcesses.class.getName());
+    private static final Set<AutoCloseable> SESSIONS = ConcurrentHashMap.newKeySet();
+    private static final Method PID = method(Process.class, "pid");
+    private static final Method DESCENDANTS = method(Process.class, "descendants");
+    private static final Method HANDLE_DESTROY_FORCIBLY = method(type("java.lang.ProcessHandle"), "destroyForcibly");
+    private static final Method HANDLE_IS_ALIVE = method(type("java.lang.ProcessHandle"), "isAlive");
+    private static volatile boolean hookInstalled = false;
+
+    private PowerShellProcesses() {
+    }
+
+    /**
+     * On Windows the process started is the cmd.exe setting the code page, PowerShell is its child,
+     * so the PID PowerShell answered is kept
+     *
+     * @param answered PID answered by the startup handshake
+     * @return The PID of the process, the answered one if the handle does not have it
+     */
+    public static long pid(Process p, long answered) {
+        if (PID == null || IS_WINDOWS) {
+            return answered;
+        }
+        try {
+            return (Long) PID.invoke(p);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return answered;
+        }
+    }
+
+    /**
+     * Closes the session when the JVM exits if it is still open
+     */
+    public static void register(AutoCloseable session) {
+        if (!hookInstalled) {
+            installHook();
+        }
+        SESSIONS.add(session);
+    }
+
+    public static void unregister(AutoCloseable session) {
+        SESSIONS.remove(session);
+    }
+
+    //Sessions open, not closed yet
+    public static int liveCount() {
+        return SESSIONS.size();
+    }
+
+    /**
+     * Asks PowerShell to exit, then destroys the process if it is still alive at the deadline and forces it
+     * if it still is after the same time again. The processes it started are forced at the end.
+     * The process and writer may be null if the session did not start
+     *
+     * @param timeout Seconds the process has to exit by itself, 0 to force it right away
+     * @param pid     PID answered by the process, to reap its children where the handle can not
+     * @return true if the process has exited
+     */
+    public static boolean terminate(Process p, PrintWriter commandWriter, long timeout, long pid) {
+        if (p == null) {
+            if (commandWriter != null) {
+                commandWriter.close();
+            }
+            return true;
+        }
+        //Taken first, the children of an exited process are no longer its descendants
+        List<Object> descendants = descendants(p);
+        boolean forced = false;
+        try {
+            if (commandWriter != null) {
+                commandWriter.println("exit");
+                commandWriter.close();
+            }
+            if (!p.waitFor(timeout, TimeUnit.SECONDS)) {
+                log.log(timeout > 0 ? Level.WARNING : Level.FINE, "PowerShell did not exit within {0} s, destroying it. PID: {1}", new Object[]{timeout, String.valueOf(pid)});
+                p.destroy();
+                if (!p.waitFor(Math.max(timeout, 1), TimeUnit.SECONDS)) {
+                    forced = true;
+                    p.destroyForcibly().waitFor(Math.max(timeout, 1), TimeUnit.SECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            forced = true;
+            p.destroyForcibly();
+        }
+        reap(descendants, forced, pid);
+        if (p.isAlive()) {
+            log.log(Level.SEVERE, "PowerShell is still alive after it was forced to close. PID: {0}", String.valueOf(pid));
+            return false;
+        }
+        return true;
+    }
+
+    private static void reap(List<Object> descendants, boolean forced, long pid) {
+        for (Object handle : descendants) {
+            try {
+                if ((Boolean) HANDLE_IS_ALIVE.invoke(handle)) {
+                    HANDLE_DESTROY_FORCIBLY.invoke(handle);
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                log.log(Level.FINE, "Could not destroy a child of PowerShell", e);
+            }
+        }
+        //Java 8, the PowerShell child of cmd.exe survives it
+        if (DESCENDANTS == null && forced && IS_WINDOWS && pid > 0) {
+            try {
+                Runtime.getRuntime().exec("taskkill.exe /PID " + pid + " /F /T");
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unexpected error while killing powershell process", e);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> descendants(Process p) {
+        if (DESCENDANTS == null) {
+            return Collections.emptyList();
+        }
+        try {
+            try (Stream<Object> handles = (Stream<Object>) DESCENDANTS.invoke(p)) {
+                return handles.collect(Collectors.toList());
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.log(Level.FINE, "Could not list the children of PowerShell", e);
+            return Collections.emptyList();
+        }
+    }
+
+    private static synchronized void installHook() {
+        if (hookInstalled) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            //In parallel, every session may wait for its process to exit
+            List<Thread> closing = new ArrayList<>();
+            for (AutoCloseable session : SESSIONS) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        session.close();
+                    } catch (Exception e) {
+                        log.log(Level.SEVERE, "Unexpected error when when closing PowerShell", e);
+                    }
+                }, "ppowershell-shutdown");
+                thread.start();
+                closing.add(thread);
+            }
+            for (Thread thread : closing) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }, "ppowershell-shutdown-hook"));
+        hookInstalled = true;
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Method method(Class<?> type, String name) {
+        try {
+            return type == null ? null : type.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
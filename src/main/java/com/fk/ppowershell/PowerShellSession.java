@@ -0,0 +1,24 @@
+package com.fk.ppowershell;
+
+/**
+ A PowerShell session that executes scripts synchronously and returns their output.
+ Implemented by the blocking and control modes, and by the session pool
+ */
+public interface PowerShellSession extends AutoCloseable {
+
+    PSResponse executeScriptFile(String scriptPath);
+
+    PSResponse executeScriptFile(String scriptPath, String params);
+
+    PSResponse executeScriptText(String script);
+
+    PSResponse executeScriptText(String script, String params);
+
+    /**
+     * @return false once the session is closed or its PowerShell process has exited
+     */
+    boolean isAlive();
+
+    @Override
+    void close();
+}
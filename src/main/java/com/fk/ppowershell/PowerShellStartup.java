@@ -0,0 +1,98 @@
+package com.fk.ppowershell;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ Starting a PowerShell process: the session is ready as soon as the process answers a handshake,
+ a nonce followed by its $pid, instead of after a fixed wait. Whatever the process writes before
+ the nonce, e.g. a banner or the code page, is skipped. A process that does not answer within
+ the start timeout is destroyed, so a hung start never blocks the caller longer than that
+ */
+public final class PowerShellStartup {
+    private static final Logger log = Logger.getLogger(PowerShellStartup.class.getName());
+    private static final SecureRandom NONCES = new SecureRandom();
+    private static final ExecutorService STARTER = Executors.newCachedThreadPool(daemonThread("ppowershell-starter"));
+
+    private PowerShellStartup() {
+    }
+
+    /**
+     * @param timeout Seconds the process has to answer, then it is destroyed
+     * @return The process identifier, -1 if the answer is not a number
+     * @throws PowerShellException if the process ends or does not answer in time
+     */
+    public static long handshake(Process p, PrintWriter commandWriter, FrameReader reader, long timeout) {
+        String nonce = "--PPS-READY-" + Long.toHexString(NONCES.nextLong()) + "--";
+        //Two commands, both are queued by the shell while it is still starting
+        commandWriter.println(InlineScript.literal(nonce));
+        commandWriter.println("$pid");
+        //Read on a starter thread, a process that does not answer may keep its output open even once destroyed
+        CompletableFuture<Long> answer = CompletableFuture.supplyAsync(() -> readAnswer(p, reader, reader.encode(nonce)), STARTER);
+        try {
+            return answer.get(timeout, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            p.destroyForcibly();
+            throw new PowerShellException("PowerShell did not answer within " + timeout + " s");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            p.destroyForcibly();
+            throw new PowerShellException("Interrupted while waiting for PowerShell to start", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PowerShellException) {
+                throw (PowerShellException) e.getCause();
+            }
+            throw new PowerShellException("Cannot read the PowerShell handshake", e.getCause());
+        }
+    }
+
+    private static long readAnswer(Process p, FrameReader reader, byte[] marker) {
+        try {
+            while (reader.nextLine()) {
+                if (reader.lineEquals(marker)) {
+                    String pid = reader.nextLine() ? reader.line().replaceAll("\\D", "") : "";
+                    return pid.isEmpty() ? -1 : Long.parseLong(pid);
+                }
+                log.log(Level.FINE, "Skipped startup output: {0}", reader.line());
+            }
+            //The output ended before the answer, the process exited
+            boolean exited = p.waitFor(1, TimeUnit.SECONDS);
+            throw new PowerShellException("Cannot execute PowerShell. Please make sure that it is installed in your system."
+                    + (exited ? " Errorcode:" + p.exitValue() : ""));
+        } catch (IOException | NumberFormatException e) {
+            throw new PowerShellException("Cannot read the PowerShell handshake", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PowerShellException("Interrupted while waiting for PowerShell to start", e);
+        }
+    }
+
+    /**
+     * Opens a session on a starter thread, e.g. {@code openAsync(() -> PowerShellControl.openProcess(path, config))},
+     * so that several sessions boot in parallel
+     */
+    public static <T> CompletableFuture<T> openAsync(Supplier<T> opener) {
+        return CompletableFuture.supplyAsync(opener, STARTER);
+    }
+
+    private static ThreadFactory daemonThread(String name) {
+        AtomicInteger sequence = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
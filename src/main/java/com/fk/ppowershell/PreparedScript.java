@@ -0,0 +1,210 @@
+package com.fk.ppowershell;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ A script prepared once with declared parameters, then executed with argument values
+ that are bound as PowerShell parameters instead of being concatenated into the script.
+ The script text is the same for every call, so it is cached by the session, see {@link ScriptCache}.
+ Arguments are written as PowerShell literals: null, Boolean, Number, CharSequence, Character, Enum,
+ arrays and collections of them, and maps with such keys and values.
+ Strings with line breaks or other control characters are passed Base64 encoded, the command stays on one line
+ */
+public final class PreparedScript {
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private final String text;
+    private final List<String> parameters;
+
+    private PreparedScript(String text, List<String> parameters) {
+        this.text = text;
+        this.parameters = parameters;
+    }
+
+    /**
+     * @param script     Script using the parameters as variables, e.g. {@code Get-Process -Name $name}
+     * @param parameters Parameter names, none if the script declares its own param block
+     */
+    public static PreparedScript prepare(String script, String... parameters) {
+        if (parameters.length == 0) {
+            return new PreparedScript(script, Collections.emptyList());
+        }
+        StringBuilder text = new StringBuilder(script.length() + parameters.length * 16 + 8).append("param(");
+        for (int i = 0; i < parameters.length; i++) {
+            checkName(parameters[i]);
+            text.append(i == 0 ? "$" : ", $").append(parameters[i]);
+        }
+        text.append(")\n").append(script);
+        return new PreparedScript(text.toString(), Collections.unmodifiableList(Arrays.asList(parameters.clone())));
+    }
+
+    //The script sent to the session, with its param block
+    public String getText() {
+        return text;
+    }
+
+    public List<String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Execute with the arguments in the order of the declared parameters
+     *
+     * @throws IllegalArgumentException if there are more arguments than parameters, or an argument has no literal
+     */
+    public PSResponse execute(PowerShellSession session, Object... arguments) {
+        return session.executeScriptText(text, bind(arguments));
+    }
+
+    /**
+     * Execute with arguments by parameter name, which may also be parameters of the script's own param block
+     */
+    public PSResponse execute(PowerShellSession session, Map<String, ?> arguments) {
+        return session.executeScriptText(text, bind(arguments));
+    }
+
+    //The parameters string for the arguments in the order of the declared parameters
+    public String bind(Object... arguments) {
+        if (arguments.length > parameters.size()) {
+            throw new IllegalArgumentException("Expected at most " + parameters.size() + " arguments, got " + arguments.length);
+        }
+        Map<String, Object> named = new LinkedHashMap<>();
+        for (int i = 0; i < arguments.length; i++) {
+            named.put(parameters.get(i), arguments[i]);
+        }
+        return bind(named);
+    }
+
+    //The parameters string for the arguments by parameter name
+    public String bind(Map<String, ?> arguments) {
+        StringBuilder params = new StringBuilder();
+        for (Map.Entry<String, ?> argument : arguments.entrySet()) {
+            checkName(argument.getKey());
+            if (params.length() > 0) {
+                params.append(' ');
+            }
+            //The colon form binds the value even to a switch parameter
+            params.append('-').append(argument.getKey()).append(":(");
+            appendLiteral(params, argument.getValue());
+            params.append(')');
+        }
+        return params.toString();
+    }
+
+    /**
+     * @return A PowerShell expression evaluating to the value
+     * @throws IllegalArgumentException if the value has no literal
+     */
+    public static String literal(Object value) {
+        StringBuilder literal = new StringBuilder();
+        appendLiteral(literal, value);
+        return literal.toString();
+    }
+
+    private static void appendLiteral(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append("$null");
+        } else if (value instanceof Boolean) {
+            out.append((Boolean) value ? "$true" : "$false");
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof BigInteger) {
+            out.append(value);
+        } else if (value instanceof Double || value instanceof Float) {
+            appendDouble(out, ((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal) {
+            out.append("[decimal]'").append(((BigDecimal) value).toPlainString()).append('\'');
+        } else if (value instanceof CharSequence || value instanceof Character) {
+            appendString(out, value.toString());
+        } else if (value instanceof Enum) {
+            appendString(out, ((Enum<?>) value).name());
+        } else if (value instanceof Map) {
+            out.append("@{");
+            Iterator<? extends Map.Entry<?, ?>> it = ((Map<?, ?>) value).entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<?, ?> entry = it.next();
+                appendLiteral(out, entry.getKey());
+                out.append(" = ");
+                appendLiteral(out, entry.getValue());
+                out.append(it.hasNext() ? "; " : "");
+            }
+            out.append('}');
+        } else if (value instanceof Collection) {
+            appendArray(out, ((Collection<?>) value).toArray());
+        } else if (value.getClass().isArray()) {
+            Object[] elements = new Object[Array.getLength(value)];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = Array.get(value, i);
+            }
+            appendArray(out, elements);
+        } else {
+            throw new IllegalArgumentException("No PowerShell literal for " + value.getClass().getName());
+        }
+    }
+
+    private static void appendArray(StringBuilder out, Object[] elements) {
+        //The unary comma keeps a single element array from being unrolled
+        out.append(elements.length == 1 ? "@(," : "@(");
+        for (int i = 0; i < elements.length; i++) {
+            out.append(i == 0 ? "" : ", ");
+            appendLiteral(out, elements[i]);
+        }
+        out.append(')');
+    }
+
+    private static void appendDouble(StringBuilder out, double value) {
+        if (Double.isNaN(value)) {
+            out.append("[double]::NaN");
+        } else if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "[double]::PositiveInfinity" : "[double]::NegativeInfinity");
+        } else {
+            //Always a double, even for integral values, and independent of the culture
+            out.append("[double]'").append(value).append('\'');
+        }
+    }
+
+    //PowerShell also closes a single quoted string on the typographic single quotes, they are doubled as well
+    private static void appendString(StringBuilder out, String value) {
+        if (hasLineBreakOrControl(value)) {
+            //The command is written as one line, the text is decoded in PowerShell instead
+            out.append("([Text.Encoding]::UTF8.GetString([Convert]::FromBase64String('")
+                    .append(Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8))).append("')))");
+            return;
+        }
+        out.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\'' || c == '\u2018' || c == '\u2019' || c == '\u201A' || c == '\u201B') {
+                out.append(c);
+            }
+            out.append(c);
+        }
+        out.append('\'');
+    }
+
+    private static boolean hasLineBreakOrControl(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isISOControl(c) || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkName(String name) {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid parameter name: " + name);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.fk.ppowershell;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ Scripts defined once in a PowerShell session as global functions named after the hash of their text,
+ then invoked by name, so a hot script is neither sent nor parsed again.
+ The least recently used functions are removed from the session when the cache is full.
+
+ The cache mirrors the state of one process: the statements it returns must be written in the order
+ they are obtained, and it must be cleared when the process is restarted
+ */
+public final class ScriptCache {
+    private static final String FUNCTION_PREFIX = "__pps_";
+    private final int capacity;
+    //Script text to function name, in access order
+    private final LinkedHashMap<String, String> functions;
+    //Functions to remove from the session with the next statement
+    private final List<String> evicted = new ArrayList<>();
+
+    /**
+     * @param capacity Maximum number of functions kept in the session, 0 disables the cache
+     */
+    public ScriptCache(int capacity) {
+        this.capacity = capacity;
+        this.functions = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > ScriptCache.this.capacity) {
+                    evicted.add(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * @return A statement that runs the script with the parameters, defining the function first
+     * if the session does not have it yet
+     */
+    public synchronized String invocation(String script, String params) {
+        if (!isEnabled()) {
+            return InlineScript.call(script, params);
+        }
+        StringBuilder statement = new StringBuilder();
+        String function = functions.get(script);
+        if (function == null) {
+            function = FUNCTION_PREFIX + hash(script);
+            functions.put(script, function);
+            statement.append("${function:global:").append(function).append("} = ").append(InlineScript.scriptBlock(script)).append("; ");
+        }
+        for (String name : evicted) {
+            if (!name.equals(function)) {
+                statement.append("Remove-Item function:\\").append(name).append(" -ErrorAction Ignore; ");
+            }
+        }
+        evicted.clear();
+        statement.append(function);
+        if (params != null && !params.isEmpty()) {
+            statement.append(' ').append(params);
+        }
+        return statement.toString();
+    }
+
+    /**
+     * The statement defining the function may not have run, e.g. its command was cancelled before it started,
+     * the next invocation of the script defines it again
+     */
+    public synchronized void forget(String script) {
+        String function = functions.remove(script);
+        if (function != null) {
+            evicted.add(function);
+        }
+    }
+
+    public synchronized int size() {
+        return functions.size();
+    }
+
+    //The process was restarted, its functions are gone
+    public synchronized void clear() {
+        functions.clear();
+        evicted.clear();
+    }
+
+    private static String hash(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
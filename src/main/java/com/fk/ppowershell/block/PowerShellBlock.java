@@ -1,10 +1,17 @@
 package com.fk.ppowershell.block;
 
 
+import com.fk.ppowershell.InlineScript;
+import com.fk.ppowershell.JsonRecords;
 import com.fk.ppowershell.PSResponse;
 import com.fk.ppowershell.PowerShellCodepage;
 import com.fk.ppowershell.PowerShellConfig;
 import com.fk.ppowershell.PowerShellException;
+import com.fk.ppowershell.PowerShellMetrics;
+import com.fk.ppowershell.PowerShellProcesses;
+import com.fk.ppowershell.PowerShellSession;
+import com.fk.ppowershell.PowerShellStartup;
+import com.fk.ppowershell.ScriptCache;
 
 import java.io.*;
 import java.nio.charset.Charset;
@@ -17,6 +24,8 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -26,7 +35,7 @@ import static com.fk.ppowershell.Constant.*;
  业务线程A 异步向powershell进程输出命令
  业务线程A 同步等待 powershell进程输出，直到进程输出完毕
  */
-public final class PowerShellBlock implements AutoCloseable {
+public final class PowerShellBlock implements PowerShellSession {
     private static final Logger log = Logger.getLogger(PowerShellBlock.class.getName());
     // Process to store PowerShell session
     Process p;
@@ -37,11 +46,19 @@ public final class PowerShellBlock implements AutoCloseable {
     private ProcessorBlock processor;
     // Threaded session variables
     private boolean closed = false;
-    private Integer startProcessWaitTime = 1;
+    //Seconds the process has to answer the startup handshake
+    int startTimeout = 30;
+    //Seconds the process has to exit when closed before it is destroyed
+    private int closeTimeout = 2;
     //Default PowerShell executable path
     private File tempFolder = null;
     private boolean isAddLock = false;
     private int maxWaitTime = 3;
+    private int maxInlineScriptSize = 16384;
+    private ScriptCache scriptCache = new ScriptCache(64);
+    private boolean metricsJmx = true;
+    private boolean logExecutionTime = true;
+    private PowerShellMetrics metrics;
     private final ReentrantLock lock = new ReentrantLock(true);
 
     private PowerShellBlock() {
@@ -56,8 +73,15 @@ public final class PowerShellBlock implements AutoCloseable {
             this.tempFolder = config.get(TEMP_FOLDER) != null ? getTempFolder(config.get(TEMP_FOLDER)) : getTempFolder(properties.getProperty(TEMP_FOLDER));
             this.maxWaitTime = Integer.parseInt(config.get(MAX_WAIT_TIME) != null ? config.get(MAX_WAIT_TIME) : properties.getProperty(MAX_WAIT_TIME));
             this.isAddLock = Boolean.parseBoolean(config.get(IS_ADD_LOCK) != null ? config.get(IS_ADD_LOCK) : properties.getProperty(IS_ADD_LOCK));
-            this.startProcessWaitTime = Integer.parseInt(config.get(START_PROCESS_WAIT_TIME) != null ? config.get(START_PROCESS_WAIT_TIME)
-                    : properties.getProperty(START_PROCESS_WAIT_TIME));
+            this.startTimeout = Integer.parseInt(config.get(START_TIMEOUT) != null ? config.get(START_TIMEOUT) : properties.getProperty(START_TIMEOUT));
+            this.closeTimeout = Integer.parseInt(config.get(CLOSE_TIMEOUT) != null ? config.get(CLOSE_TIMEOUT) : properties.getProperty(CLOSE_TIMEOUT));
+            this.maxInlineScriptSize = Integer.parseInt(config.get(MAX_INLINE_SCRIPT_SIZE) != null ? config.get(MAX_INLINE_SCRIPT_SIZE)
+                    : properties.getProperty(MAX_INLINE_SCRIPT_SIZE));
+            this.metricsJmx = Boolean.parseBoolean(config.get(METRICS_JMX) != null ? config.get(METRICS_JMX) : properties.getProperty(METRICS_JMX));
+            this.logExecutionTime = Boolean.parseBoolean(config.get(LOG_EXECUTION_TIME) != null ? config.get(LOG_EXECUTION_TIME)
+                    : properties.getProperty(LOG_EXECUTION_TIME));
+            this.scriptCache = new ScriptCache(Integer.parseInt(config.get(SCRIPT_CACHE_SIZE) != null ? config.get(SCRIPT_CACHE_SIZE)
+                    : properties.getProperty(SCRIPT_CACHE_SIZE)));
         } catch (Exception nfe) {
             log.log(Level.WARNING, "Could not read configuration. Using default values.", nfe);
         }
@@ -69,10 +93,17 @@ public final class PowerShellBlock implements AutoCloseable {
 
 
     public static PowerShellBlock openProcess(String customPowerShellExecutablePath) {
+        return openProcess(customPowerShellExecutablePath, null);
+    }
+
+    /**
+     * @param config Overrides the values of pps.properties, may be null
+     */
+    public static PowerShellBlock openProcess(String customPowerShellExecutablePath, Map<String, String> config) {
         PowerShellBlock powerShell = null;
         try {
             powerShell = new PowerShellBlock();
-            powerShell.configuration(null);
+            powerShell.configuration(config);
             String powerShellExecutablePath = customPowerShellExecutablePath == null ? (IS_WINDOWS ? DEFAULT_WIN_EXECUTABLE : DEFAULT_LINUX_EXECUTABLE) : customPowerShellExecutablePath;
             return powerShell.initialize(powerShellExecutablePath);
         } catch (Exception e) {
@@ -84,6 +115,16 @@ public final class PowerShellBlock implements AutoCloseable {
         }
     }
 
+    /**
+     * Open the session on a starter thread, the future completes once the process has answered the startup handshake.
+     * Call it several times at application startup to boot the processes in parallel
+     *
+     * @param config Overrides the values of pps.properties, may be null
+     */
+    public static CompletableFuture<PowerShellBlock> openProcessAsync(String customPowerShellExecutablePath, Map<String, String> config) {
+        return PowerShellStartup.openAsync(() -> openProcess(customPowerShellExecutablePath, config));
+    }
+
     // Initializes PowerShell console in which we will enter the commands
     private PowerShellBlock initialize(String powerShellExecutablePath) {
         String codePage = PowerShellCodepage.getIdentifierByCodePageName(Charset.defaultCharset().name());
@@ -102,30 +143,34 @@ public final class PowerShellBlock implements AutoCloseable {
         try {
             //Launch process
             p = pb.start();
-            if (p.waitFor(startProcessWaitTime, TimeUnit.SECONDS) && !p.isAlive()) {
-                throw new PowerShellException("Cannot execute PowerShell. Please make sure that it is installed in your system. Errorcode:" + p.exitValue());
-            }
         } catch (IOException ex) {
             throw new PowerShellException("Cannot execute PowerShell. Please make sure that it is installed in your system", ex);
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
-            throw new PowerShellException("Cannot execute PowerShell. Please make sure that it is installed in your system", ex);
         }
 
         //Prepare writer that will be used to send commands to powershell
         this.commandWriter = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(p.getOutputStream())), true);
         this.processor = new ProcessorBlock(this);
+        this.metrics = new PowerShellMetrics("Block", String.valueOf(pid));
+        this.metrics.setOutputBytes(processor::getBytesRead);
+        this.metrics.setPid(() -> pid);
+        if (metricsJmx) {
+            this.metrics.register();
+        }
+        PowerShellProcesses.register(this);
         return this;
     }
 
 
-    private PSResponse executeCommand(String command, boolean iScriptMode) {
+    //The command is built when it is written, so that the script cache sees the commands in writing order
+    private PSResponse executeCommand(Supplier<String> command, boolean iScriptMode, Consumer<CharSequence> lineSink) {
         checkState();
         PSResponse commandOutput;
         long commandStart = System.currentTimeMillis();
         if (isAddLock) {
+            long lockWait = System.nanoTime();
             try {
                 if (!lock.tryLock(maxWaitTime, TimeUnit.SECONDS)) {
+                    metrics.recordLockRejected();
                     return new PSResponse(true, "no lock obtained");
                 }
             } catch (InterruptedException e) {
@@ -133,37 +178,63 @@ public final class PowerShellBlock implements AutoCloseable {
                 Thread.currentThread().interrupt();
                 return new PSResponse(true, "Interrupt blocking ! Restore interrupted state");
             }
-            commandOutput = execute(command, iScriptMode);
-            lock.unlock();
+            lockWait = System.nanoTime() - lockWait;
+            metrics.recordLockWait(lockWait);
+            try {
+                commandOutput = execute(command, iScriptMode, lineSink, lockWait);
+            } finally {
+                lock.unlock();
+            }
         } else {
-            commandOutput = execute(command, iScriptMode);
+            commandOutput = execute(command, iScriptMode, lineSink, 0);
         }
 
-        long commandEnd = System.currentTimeMillis();
-        log.log(Level.INFO, "execution time is {0} ms", commandEnd - commandStart);
+        if (logExecutionTime) {
+            log.log(Level.INFO, "execution time is {0} ms", System.currentTimeMillis() - commandStart);
+        }
         return commandOutput;
     }
 
-    private PSResponse execute(String command, boolean iScriptMode) {
+    private PSResponse execute(Supplier<String> command, boolean iScriptMode, Consumer<CharSequence> lineSink, long lockWait) {
+        long writeStart = System.nanoTime();
+        long writeEnd = writeStart;
         try {
-            commandWriter.println(command);
-            return new PSResponse(this.processor.process(iScriptMode));
+            commandWriter.println(command.get());
+            if (!iScriptMode) {
+                //A single command has no end marker of its own, so one is written after it
+                commandWriter.println(DOUBLE_QUOTE + END_SCRIPT_STRING + DOUBLE_QUOTE);
+            }
+            writeEnd = System.nanoTime();
+            String output = this.processor.process(lineSink);
+            metrics.recordCommand(lockWait, writeEnd - writeStart, System.nanoTime() - writeEnd, output.length(), false, false);
+            return new PSResponse(output);
         } catch (Exception e) {
+            metrics.recordCommand(lockWait, writeEnd - writeStart, System.nanoTime() - writeEnd, 0, false, true);
             log.log(Level.WARNING, "Unexpected error when processing PowerShell command", e);
             return new PSResponse(true, "Unexpected error when processing PowerShell command");
         }
     }
 
+    //Measures of the commands of this session, also published through JMX if metricsJmx is true
+    public PowerShellMetrics getMetrics() {
+        return metrics;
+    }
+
+    //Identifier of the PowerShell process, -1 if it could not be read
+    public long getPid() {
+        return pid;
+    }
+
     /**
      * Used to execute a single singleCommand only
-     * If there are multiple commands, only the output of the first singleCommand is output
+     * The output is read until the end marker written after the command
      *
      * @param singleCommand Atomic command
      * @return Command output
      */
     public static PSResponse executeSingleCommand(String singleCommand) {
         try (PowerShellBlock process = PowerShellBlock.openProcess()) {
-            return CompletableFuture.supplyAsync(() -> process.executeCommand(singleCommand, false)).get(process.maxWaitTime, TimeUnit.SECONDS);
+            return CompletableFuture.supplyAsync(() -> process.executeCommand(() -> singleCommand, false, null)).get(process.maxWaitTime, TimeUnit.SECONDS);
         } catch (PowerShellException ex) {
             return new PSResponse(true, "PowerShell execute business exception");
         } catch (InterruptedException e) {
@@ -176,10 +247,12 @@ public final class PowerShellBlock implements AutoCloseable {
         }
     }
 
+    @Override
     public PSResponse executeScriptFile(String scriptPath) {
         return executeScriptFile(scriptPath, "");
     }
 
+    @Override
     public PSResponse executeScriptFile(String scriptPath, String params) {
         try (BufferedReader srcReader = new BufferedReader(new FileReader(scriptPath))) {
             return executeScriptText(srcReader.lines().collect(Collectors.joining(";")), params);
@@ -192,11 +265,33 @@ public final class PowerShellBlock implements AutoCloseable {
         }
     }
 
+    @Override
     public PSResponse executeScriptText(String script) {
         return executeScriptText(script, "");
     }
 
+    @Override
     public PSResponse executeScriptText(String script, String params) {
+        return executeScriptText(script, params, null);
+    }
+
+    public PSResponse executeScriptText(String script, Consumer<CharSequence> lineSink) {
+        return executeScriptText(script, "", lineSink);
+    }
+
+    /**
+     * Stream the output to the sink line by line as it is read, instead of collecting it in the response.
+     * A line is only valid during the call, use toString() to keep it
+     *
+     * @param lineSink Receives the output lines, null to collect them in the response
+     * @return Response without output when streaming
+     */
+    public PSResponse executeScriptText(String script, String params, Consumer<CharSequence> lineSink) {
+        //Small scripts are sent in-band, without touching the file system, and cached in the session
+        if (InlineScript.fits(script, maxInlineScriptSize)) {
+            return executeCommand(() -> InlineScript.frame(new String[0], scriptCache.invocation(script, params), END_SCRIPT_STRING), true, lineSink);
+        }
+
         //1. Create temporary file
         File tmpFile;
         try {
@@ -224,7 +319,7 @@ public final class PowerShellBlock implements AutoCloseable {
         }
 
         //3. Write commands to the PowerShell process And Return process output
-        PSResponse psResponse = executeCommand(tmpFile.getAbsolutePath() + " " + params, true);
+        PSResponse psResponse = executeCommand(() -> tmpFile.getAbsolutePath() + " " + params, true, lineSink);
 
         //4.delete tmpFile
         if (!tmpFile.delete()) {
@@ -234,31 +329,44 @@ public final class PowerShellBlock implements AutoCloseable {
         return psResponse;
     }
 
+    public PSResponse executeJson(String script, Consumer<Object> recordSink) {
+        return executeJson(script, "", recordSink);
+    }
+
+    /**
+     * Structured mode: every output object is converted to JSON by PowerShell and decoded as soon as its line is read
+     *
+     * @param recordSink Receives every decoded object as a Map, or a List, String, Long, Double, Boolean for other values
+     * @return Response without output, or an error response with the output lines that were not JSON
+     */
+    public PSResponse executeJson(String script, String params, Consumer<Object> recordSink) {
+        JsonRecords.Decoder decoder = new JsonRecords.Decoder(recordSink);
+        return decoder.complete(executeScriptText(JsonRecords.wrap(script), params, decoder));
+    }
+
+    /**
+     * Structured mode binding every output object to the given type
+     *
+     * @see JsonRecords#bind(Object, Class)
+     */
+    public <T> PSResponse executeJson(String script, String params, Class<T> type, Consumer<? super T> recordSink) {
+        return executeJson(script, params, record -> recordSink.accept(JsonRecords.bind(record, type)));
+    }
+
     @Override
     public void close() {
         if (!this.closed) {
             try {
-                commandWriter.println("exit");
-                if (this.pid > 0) {
-                    //If it can be closed, force kill the process
-                    log.log(Level.SEVERE, "Forcing PowerShell to close. PID: " + this.pid);
-                    try {
-                        if(IS_WINDOWS){
-                            Runtime.getRuntime().exec("taskkill.exe /PID " + pid + " /F /T");
-                        }else{
-                            Runtime.getRuntime().exec("kill -9 " + pid);
-                        }
-                        this.closed = true;
-                    } catch (IOException e) {
-                        log.log(Level.SEVERE, "Unexpected error while killing powershell process", e);
-                    }
-                }
+                PowerShellProcesses.terminate(p, commandWriter, closeTimeout, pid);
             } catch (Exception ex) {
                 log.log(Level.SEVERE, "Unexpected error when when closing PowerShell", ex);
             } finally {
-                commandWriter.close();
+                PowerShellProcesses.unregister(this);
+                if (metrics != null) {
+                    metrics.unregister();
+                }
                 try {
-                    if (p.isAlive()) {
+                    if (p != null && p.isAlive()) {
                         p.getInputStream().close();
                     }
                 } catch (IOException ex) {
@@ -269,6 +377,11 @@ public final class PowerShellBlock implements AutoCloseable {
         }
     }
 
+    @Override
+    public boolean isAlive() {
+        return !this.closed && p.isAlive();
+    }
+
     //Checks if PowerShell have been already closed
     private void checkState() {
         if (this.closed) {
@@ -2,103 +2,64 @@ package com.fk.ppowershell.block;
 
 
 import com.fk.ppowershell.Constant;
+import com.fk.ppowershell.FrameReader;
 import com.fk.ppowershell.PowerShellException;
+import com.fk.ppowershell.PowerShellProcesses;
+import com.fk.ppowershell.PowerShellStartup;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 class ProcessorBlock {
     private static final Logger log = Logger.getLogger(ProcessorBlock.class.getName());
-    private static final String CRLF = "\r\n";
     private final PowerShellBlock powerShell;
-    private final BufferedReader reader;
+    private final FrameReader reader;
+    private final byte[] endMarker;
 
     public ProcessorBlock(PowerShellBlock powerShell) {
         this.powerShell = powerShell;
-        this.reader = new BufferedReader(new InputStreamReader(powerShell.p.getInputStream()));
-        this.powerShell.pid = getPID(reader);
+        this.reader = new FrameReader(powerShell.p.getInputStream());
+        this.endMarker = reader.encode(Constant.END_SCRIPT_STRING);
+        long answered = PowerShellStartup.handshake(powerShell.p, powerShell.commandWriter, reader, powerShell.startTimeout);
+        this.powerShell.pid = PowerShellProcesses.pid(powerShell.p, answered);
     }
 
-    //Use Powershell command '$PID' in order to recover the process identifier
-    private int getPID(BufferedReader reader) {
-        powerShell.commandWriter.println("$pid");
-        try {
-            String commandOutput = reader.readLine().replaceAll("\\D", "");
-            if ("65001".equals(commandOutput) || "936".equals(commandOutput) || "437".equals(commandOutput))
-                commandOutput = reader.readLine().replaceAll("\\D", "");
-            if (!commandOutput.isEmpty()) {
-                return Integer.parseInt(commandOutput);
-            }
-        } catch (IOException e) {
-            throw new PowerShellException("", e);
-        }
-        return -1;
+    long getBytesRead() {
+        return reader.getBytesRead();
     }
 
-    public String process(boolean iScriptMode) {
+    public String process(Consumer<CharSequence> lineSink) {
         try {
-            waitingToReadData();
-            return readData(iScriptMode);
+            return readData(lineSink);
         } catch (IOException ioe) {
             log.log(Level.SEVERE, "Unexpected error reading PowerShell output", ioe);
             return ioe.getMessage();
         }
     }
 
-    //Reads all data from output
-    private String readData(boolean iScriptMode) throws IOException {
-        StringBuilder powerShellOutput = new StringBuilder();
-        String line;
-        if(iScriptMode){
-            while (null != (line = this.reader.readLine())) {
-                if (line.equals(Constant.END_SCRIPT_STRING)) {
-                    break;
-                }
-                powerShellOutput.append(line).append(CRLF);
+    //Reads all data from output, blocking until the end marker. Streamed lines are not kept
+    private String readData(Consumer<CharSequence> lineSink) throws IOException {
+        RuntimeException sinkFailure = null;
+        while (this.reader.nextLine()) {
+            if (this.reader.lineEquals(endMarker)) {
+                break;
             }
-        }else{
-            while (null != (line = this.reader.readLine())) {
-                powerShellOutput.append(line).append(CRLF);
-                if (!canContinueReading()) {
-                    break;
+            if (lineSink == null) {
+                this.reader.keepLine();
+            } else if (sinkFailure == null) {
+                try {
+                    lineSink.accept(this.reader.lineView());
+                } catch (RuntimeException e) {
+                    //Keep reading up to the end marker, so the next command does not get this output
+                    sinkFailure = e;
                 }
             }
         }
-        return powerShellOutput.toString().replaceAll("\\s+$", "");
-    }
-
-    private boolean canContinueReading() {
-        //If the reader is not ready, gives it some milliseconds
-        //It is important to do that, because the ready method guarantees that the readline will not be blocking
-        try {
-            if (this.reader.ready()) {
-                return true;
-            }
-            Thread.sleep(5);
-            //If not ready yet, wait a moment to make sure it is finished
-            if (this.reader.ready()) {
-                return true;
-            }
-            Thread.sleep(50);
-            return this.reader.ready();
-        } catch (IOException e) {
-            log.log(Level.SEVERE, "", e);
-        } catch (InterruptedException e) {
-            log.log(Level.SEVERE, "", e);
-            Thread.currentThread().interrupt();
-        }
-        return false;
-    }
-
-    private void waitingToReadData() throws IOException {
-        try {
-            while (!this.reader.ready()) Thread.sleep(50);
-        } catch (InterruptedException ex) {
-            log.warning("Interrupt blocking ! , Restore interrupted state");
-            Thread.currentThread().interrupt();
+        if (sinkFailure != null) {
+            throw new PowerShellException("Line sink failed", sinkFailure);
         }
+        return this.reader.takePayload();
     }
 }
\ No newline at end of file
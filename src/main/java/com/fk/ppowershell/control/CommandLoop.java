@@ -0,0 +1,159 @@
+package com.fk.ppowershell.control;
+
+import com.fk.ppowershell.InlineScript;
+
+import static com.fk.ppowershell.Constant.CANCEL_SCRIPT_STRING;
+import static com.fk.ppowershell.Constant.END_ERROR_STRING;
+import static com.fk.ppowershell.Constant.END_SCRIPT_STRING;
+
+/**
+ The loop a cancellable session runs in PowerShell instead of reading its commands with -Command -.
+ Every command line starts with the identity of the command, and runs in a runspace of its own that shares
+ the host, so the state of the session is kept from one command to the next and the output is written like before.
+ The input is read by a runspace of its own, the blocking reads of Console.In never hold up the loop: while a command runs
+ the loop keeps taking the lines read, a cancel line stops the command if it is the running one, or skips it if it is still queued, and the loop writes the end marker and identity the stopped command could not write.
+ With -SeparateErrors the errors of a command are not merged into its output, the loop writes them to the error stream
+ once the command has ended, followed by the error trailer of the command
+ */
+final class CommandLoop {
+    //The simulator of the benchmarks recognizes the loop by its first line
+    static final String SCRIPT = String.join("\n",
+            "# ppowershell command loop",
+            "param([switch]$SeparateErrors)",
+            "$runspace = [runspacefactory]::CreateRunspace($Host)",
+            "$runspace.Open()",
+            "$queue = New-Object 'System.Collections.Generic.Queue[string]'",
+            "$cancelled = New-Object 'System.Collections.Generic.HashSet[string]'",
+            "$lines = New-Object 'System.Collections.Concurrent.BlockingCollection[string]'",
+            "$inputRunspace = [runspacefactory]::CreateRunspace()",
+            "$inputRunspace.Open()",
+            "$inputRunspace.SessionStateProxy.SetVariable('lines', $lines)",
+            "$inputPs = [PowerShell]::Create()",
+            "$inputPs.Runspace = $inputRunspace",
+            //Console.In, not a new stream on the standard input, the host may have buffered the lines written after the loop
+            "[void]$inputPs.AddScript({",
+            "    try {",
+            "        while ($null -ne ($line = [Console]::In.ReadLine())) {",
+            "            $lines.Add($line)",
+            "            if ($line -eq 'exit') {",
+            "                break",
+            "            }",
+            "        }",
+            "    } finally {",
+            "        $lines.CompleteAdding()",
+            "    }",
+            "}.ToString())",
+            "$inputHandle = $inputPs.BeginInvoke()",
+            "$reading = $true",
+            "$ps = $null",
+            "$running = $null",
+            "$stopped = $false",
+            "while ($reading -or $queue.Count -gt 0 -or $null -ne $ps) {",
+            "    while ($reading) {",
+            //Waits for a line only when there is nothing else to do
+            "        $line = $null",
+            "        if (-not $lines.TryTake([ref]$line, $(if ($queue.Count -eq 0 -and $null -eq $ps) { -1 } else { 0 }))) {",
+            "            $reading = -not $lines.IsCompleted",
+            "            break",
+            "        }",
+            "        if ($line -eq 'exit') {",
+            "            $reading = $false",
+            "            break",
+            "        }",
+            "        if ($line.StartsWith(" + InlineScript.literal(CANCEL_SCRIPT_STRING + " ") + ")) {",
+            "            $id = $line.Substring(" + (CANCEL_SCRIPT_STRING.length() + 1) + ")",
+            "            if ($id -eq $running) {",
+            "                if (-not $stopped) {",
+            "                    $stopped = $true",
+            "                    [void]$ps.BeginStop($null, $null)",
+            "                }",
+            "            } elseif (@($queue | Where-Object { $_.StartsWith($id + ' ') }).Count -gt 0) {",
+            "                [void]$cancelled.Add($id)",
+            "            }",
+            "        } else {",
+            "            $queue.Enqueue($line)",
+            "        }",
+            "    }",
+            "    if ($null -ne $ps) {",
+            "        if (-not $handle.IsCompleted) {",
+            "            [void]$handle.AsyncWaitHandle.WaitOne($(if ($reading) { 10 } else { -1 }))",
+            "            continue",
+            "        }",
+            "        $failure = $null",
+            "        try { [void]$ps.EndInvoke($handle) } catch { $failure = $_ }",
+            "        if ($stopped) {",
+            "            [Console]::Out.WriteLine(" + InlineScript.literal(END_SCRIPT_STRING) + ")",
+            "            [Console]::Out.WriteLine($running)",
+            "            [Console]::Out.Flush()",
+            "        }",
+            "        if ($SeparateErrors) {",
+            "            foreach ($record in $ps.Streams.Error) {",
+            "                [Console]::Error.WriteLine(($record | Out-String).TrimEnd())",
+            "            }",
+            "            if ($null -ne $failure -and -not $stopped) {",
+            "                [Console]::Error.WriteLine(($failure | Out-String).TrimEnd())",
+            "            }",
+            "            $status = -not ($stopped -or $ps.HadErrors -or $null -ne $failure)",
+            "            $exitCode = $runspace.SessionStateProxy.GetVariable('LASTEXITCODE')",
+            "            [Console]::Error.WriteLine(\"" + END_ERROR_STRING + " $running $status $exitCode\")",
+            "            [Console]::Error.Flush()",
+            "        }",
+            "        $ps.Dispose()",
+            "        $ps = $null",
+            "        $running = $null",
+            "        continue",
+            "    }",
+            "    if ($queue.Count -eq 0) {",
+            "        continue",
+            "    }",
+            "    $line = $queue.Dequeue()",
+            "    $space = $line.IndexOf(' ')",
+            "    $id = $line.Substring(0, $space)",
+            "    if ($cancelled.Remove($id)) {",
+            "        [Console]::Out.WriteLine(" + InlineScript.literal(END_SCRIPT_STRING) + ")",
+            "        [Console]::Out.WriteLine($id)",
+            "        [Console]::Out.Flush()",
+            "        if ($SeparateErrors) {",
+            "            [Console]::Error.WriteLine(\"" + END_ERROR_STRING + " $id False\")",
+            "            [Console]::Error.Flush()",
+            "        }",
+            "        continue",
+            "    }",
+            "    $running = $id",
+            "    $stopped = $false",
+            "    $ps = [PowerShell]::Create()",
+            "    $ps.Runspace = $runspace",
+            "    [void]$ps.AddScript($line.Substring($space + 1))",
+            "    if (-not $SeparateErrors) {",
+            "        $ps.Commands.Commands[0].MergeMyResults('Error', 'Output')",
+            "    }",
+            "    [void]$ps.AddCommand('Out-Default')",
+            "    $handle = $ps.BeginInvoke()",
+            "}",
+            "$runspace.Dispose()",
+            "if ($inputHandle.IsCompleted) {",
+            "    $inputPs.Dispose()",
+            "    $inputRunspace.Dispose()",
+            "}");
+
+    private CommandLoop() {
+    }
+
+    /**
+     * Written once, after the startup handshake, the loop then reads every following line
+     *
+     * @param separateErrors Write the errors and the error trailer of every command to the error stream
+     */
+    static String start(boolean separateErrors) {
+        return InlineScript.call(SCRIPT, separateErrors ? "-SeparateErrors" : "");
+    }
+
+    //Identities never contain a space
+    static String command(String identity, String line) {
+        return identity + " " + line;
+    }
+
+    static String cancel(String identity) {
+        return CANCEL_SCRIPT_STRING + " " + identity;
+    }
+}
@@ -1,10 +1,18 @@
 package com.fk.ppowershell.control;
 
 
+import com.fk.ppowershell.InlineScript;
+import com.fk.ppowershell.JsonRecords;
 import com.fk.ppowershell.PSResponse;
 import com.fk.ppowershell.PowerShellCodepage;
 import com.fk.ppowershell.PowerShellConfig;
 import com.fk.ppowershell.PowerShellException;
+import com.fk.ppowershell.PowerShellCall;
+import com.fk.ppowershell.PowerShellMetrics;
+import com.fk.ppowershell.PowerShellProcesses;
+import com.fk.ppowershell.PowerShellSession;
+import com.fk.ppowershell.PowerShellStartup;
+import com.fk.ppowershell.ScriptCache;
 
 import java.io.*;
 import java.nio.charset.Charset;
@@ -13,10 +21,16 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -25,27 +39,69 @@ import static com.fk.ppowershell.Constant.*;
 
 /**
  业务线程A 异步向powershell进程输出命令
- 业务线程A 托管线程X 等待 读取powershell进程输出
- 业务线程A 控制超时：若超出指定时间，X线程仍未读取到输出，则不再等待输出，直接返回超时
+ 每个会话固定一个读取线程X 读取powershell进程输出，按写入顺序匹配脚本标识，完成各自命令的响应
+ 业务线程A 控制超时：若超出指定时间，X线程仍未读取到输出，则不再等待输出，直接返回超时；
+ 超时命令的输出稍后由X线程读取并丢弃，不会占用其他线程；在此之前会话处于排空状态，后续命令等待排空完成再写入，
+ 若超过drainTimeout仍未读到超时命令的结束标识，则透明地替换为新的powershell进程，未完成的命令返回错误
+ 流水线模式（isPipelined）：业务线程只在写入命令时持有锁，多个脚本依次写入进程
+ 可取消模式（isCancellable）：powershell进程运行命令循环，startScriptText返回的调用可随时取消，
+ 正在运行的脚本被停止，会话保留其状态，无需重启进程；超时的命令也会被自动停止
+ 错误流分离模式（isSeparateErrorStream）：错误输出不再并入标准输出，由独立线程读取，每个命令最多保留maxErrorSize个字符，
+ 连同$?和$LASTEXITCODE一起返回在响应中
  */
-public final class PowerShellControl implements AutoCloseable {
+public final class PowerShellControl implements PowerShellSession {
     private static final Logger log = Logger.getLogger(PowerShellControl.class.getName());
-    // Process to store PowerShell session
-    Process p;
+    //Checks the commands that timed out once their drain timeout has passed
+    private static final ScheduledExecutorService DRAIN_CHECKER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ppowershell-control-drain");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Process to store PowerShell session, replaced when the session is recycled
+    volatile Process p;
     //PID of the process
-    long pid = -1;
+    volatile long pid = -1;
     // Writer to send commands
-    PrintWriter commandWriter;
-    private ProcessorControl processor;
+    volatile PrintWriter commandWriter;
+    private volatile ProcessorControl processor;
+    //Reads the error stream of the process in the separate error stream mode, null otherwise
+    private volatile ProcessorError errors;
+    //Guards writing the commands and replacing the process
+    private final Object writeLock = new Object();
+    private String executablePath;
+    //Output bytes of the processes replaced by recycling
+    private long recycledOutputBytes = 0;
+    //Completed once the output of the commands that timed out has been read, the next commands wait for it
+    private volatile CompletableFuture<Void> drained = CompletableFuture.completedFuture(null);
     // Threaded session variables
-    private boolean closed = false;
-    private Integer startProcessWaitTime = 1;
+    private volatile boolean closed = false;
+    //Seconds the process has to answer the startup handshake
+    int startTimeout = 30;
+    //Seconds the process has to exit when closed before it is destroyed
+    private int closeTimeout = 2;
+    //Seconds the output of a timed out command may take to be read before the process is replaced, -1 to never replace it
+    private int drainTimeout = 10;
     //Default PowerShell executable path
     private File tempFolder = null;
     private boolean isAddLock = false;
     private int maxWaitTime = 3;
     private int tryLockTime = 5;
+    private boolean isPipelined = false;
+    //The commands run in the command loop, so that they can be cancelled
+    private boolean isCancellable = false;
+    //The error stream is read apart from the output, the errors of a command are returned with its status
+    private boolean isSeparateErrorStream = false;
+    //Characters of error output kept per command
+    private int maxErrorSize = 65536;
+    private int maxInlineScriptSize = 16384;
+    private ScriptCache scriptCache = new ScriptCache(64);
+    private boolean metricsJmx = true;
+    private boolean logExecutionTime = true;
+    private PowerShellMetrics metrics;
     private final ReentrantLock lock = new ReentrantLock(true);
+    private final AtomicLong commandSequence = new AtomicLong();
+    //Cancellable mode: the scripts of the inline commands whose output has not been read yet, by identity
+    private final Map<String, String> runningScripts = new ConcurrentHashMap<>();
 
     private PowerShellControl() {
     }
@@ -60,8 +116,21 @@ public final class PowerShellControl implements AutoCloseable {
             this.maxWaitTime = Integer.parseInt(config.get(MAX_WAIT_TIME) != null ? config.get(MAX_WAIT_TIME) : properties.getProperty(MAX_WAIT_TIME));
             this.tryLockTime = Integer.parseInt(config.get(TRY_LOCK_TIME) != null ? config.get(TRY_LOCK_TIME) : properties.getProperty(TRY_LOCK_TIME));
             this.isAddLock = Boolean.parseBoolean(config.get(IS_ADD_LOCK) != null ? config.get(IS_ADD_LOCK) : properties.getProperty(IS_ADD_LOCK));
-            this.startProcessWaitTime = Integer.parseInt(config.get(START_PROCESS_WAIT_TIME) != null ? config.get(START_PROCESS_WAIT_TIME)
-                    : properties.getProperty(START_PROCESS_WAIT_TIME));
+            this.isPipelined = Boolean.parseBoolean(config.get(IS_PIPELINED) != null ? config.get(IS_PIPELINED) : properties.getProperty(IS_PIPELINED));
+            this.isCancellable = Boolean.parseBoolean(config.get(IS_CANCELLABLE) != null ? config.get(IS_CANCELLABLE) : properties.getProperty(IS_CANCELLABLE));
+            this.isSeparateErrorStream = Boolean.parseBoolean(config.get(IS_SEPARATE_ERROR_STREAM) != null ? config.get(IS_SEPARATE_ERROR_STREAM)
+                    : properties.getProperty(IS_SEPARATE_ERROR_STREAM));
+            this.maxErrorSize = Integer.parseInt(config.get(MAX_ERROR_SIZE) != null ? config.get(MAX_ERROR_SIZE) : properties.getProperty(MAX_ERROR_SIZE));
+            this.startTimeout = Integer.parseInt(config.get(START_TIMEOUT) != null ? config.get(START_TIMEOUT) : properties.getProperty(START_TIMEOUT));
+            this.closeTimeout = Integer.parseInt(config.get(CLOSE_TIMEOUT) != null ? config.get(CLOSE_TIMEOUT) : properties.getProperty(CLOSE_TIMEOUT));
+            this.drainTimeout = Integer.parseInt(config.get(DRAIN_TIMEOUT) != null ? config.get(DRAIN_TIMEOUT) : properties.getProperty(DRAIN_TIMEOUT));
+            this.maxInlineScriptSize = Integer.parseInt(config.get(MAX_INLINE_SCRIPT_SIZE) != null ? config.get(MAX_INLINE_SCRIPT_SIZE)
+                    : properties.getProperty(MAX_INLINE_SCRIPT_SIZE));
+            this.metricsJmx = Boolean.parseBoolean(config.get(METRICS_JMX) != null ? config.get(METRICS_JMX) : properties.getProperty(METRICS_JMX));
+            this.logExecutionTime = Boolean.parseBoolean(config.get(LOG_EXECUTION_TIME) != null ? config.get(LOG_EXECUTION_TIME)
+                    : properties.getProperty(LOG_EXECUTION_TIME));
+            this.scriptCache = new ScriptCache(Integer.parseInt(config.get(SCRIPT_CACHE_SIZE) != null ? config.get(SCRIPT_CACHE_SIZE)
+                    : properties.getProperty(SCRIPT_CACHE_SIZE)));
         } catch (Exception nfe) {
             log.log(Level.WARNING, "Could not read configuration. Using default values.", nfe);
         }
@@ -73,10 +142,17 @@ public final class PowerShellControl implements AutoCloseable {
 
 
     public static PowerShellControl openProcess(String customPowerShellExecutablePath) {
+        return openProcess(customPowerShellExecutablePath, null);
+    }
+
+    /**
+     * @param config Overrides the values of pps.properties, may be null
+     */
+    public static PowerShellControl openProcess(String customPowerShellExecutablePath, Map<String, String> config) {
         PowerShellControl powerShell = null;
         try {
             powerShell = new PowerShellControl();
-            powerShell.configuration(null);
+            powerShell.configuration(config);
             String powerShellExecutablePath = customPowerShellExecutablePath == null ? (IS_WINDOWS ? DEFAULT_WIN_EXECUTABLE : DEFAULT_LINUX_EXECUTABLE) : customPowerShellExecutablePath;
             return powerShell.initialize(powerShellExecutablePath);
         } catch (Exception e) {
@@ -88,8 +164,33 @@ public final class PowerShellControl implements AutoCloseable {
         }
     }
 
+    /**
+     * Open the session on a starter thread, the future completes once the process has answered the startup handshake.
+     * Call it several times at application startup to boot the processes in parallel
+     *
+     * @param config Overrides the values of pps.properties, may be null
+     */
+    public static CompletableFuture<PowerShellControl> openProcessAsync(String customPowerShellExecutablePath, Map<String, String> config) {
+        return PowerShellStartup.openAsync(() -> openProcess(customPowerShellExecutablePath, config));
+    }
+
     // Initializes PowerShell console in which we will enter the commands
     private PowerShellControl initialize(String powerShellExecutablePath) {
+        this.executablePath = powerShellExecutablePath;
+        use(start());
+        this.metrics = new PowerShellMetrics("Control", String.valueOf(pid));
+        this.metrics.setOutputBytes(() -> recycledOutputBytes + processor.getBytesRead());
+        this.metrics.setPid(() -> pid);
+        if (metricsJmx) {
+            this.metrics.register();
+        }
+        PowerShellProcesses.register(this);
+        return this;
+    }
+
+    //Starts the process and its reader threads, the fields of the session are left untouched
+    private Started start() {
+        String powerShellExecutablePath = executablePath;
         String codePage = PowerShellCodepage.getIdentifierByCodePageName(Charset.defaultCharset().name());
         ProcessBuilder pb;
 
@@ -101,61 +202,251 @@ public final class PowerShellControl implements AutoCloseable {
             pb = new ProcessBuilder(powerShellExecutablePath, "-nologo", "-noexit", "-Command", "-");
         }
 
-        //Merge standard and error streams
-        pb.redirectErrorStream(true);
+        //Merge standard and error streams, unless the errors are read apart
+        pb.redirectErrorStream(!isSeparateErrorStream);
+        Process process;
         try {
             //Launch process
-            p = pb.start();
-            if (p.waitFor(startProcessWaitTime, TimeUnit.SECONDS) && !p.isAlive()) {
-                throw new PowerShellException("Cannot execute PowerShell. Please make sure that it is installed in your system. Errorcode:" + p.exitValue());
-            }
+            process = pb.start();
         } catch (IOException ex) {
             throw new PowerShellException("Cannot execute PowerShell. Please make sure that it is installed in your system", ex);
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
-            throw new PowerShellException("Cannot execute PowerShell. Please make sure that it is installed in your system", ex);
+        }
+        //Read from the start, a process writing errors while it starts must not block on the pipe
+        ProcessorError startedErrors = null;
+        Thread errorReader = null;
+        if (isSeparateErrorStream) {
+            startedErrors = new ProcessorError(process, maxErrorSize);
+            errorReader = new Thread(startedErrors, "ppowershell-control-errors");
+            errorReader.setDaemon(true);
+            errorReader.start();
         }
 
         //Prepare writer that will be used to send commands to powershell
-        this.commandWriter = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(p.getOutputStream())), true);
-        this.processor = new ProcessorControl(this);
-        return this;
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(process.getOutputStream())), true);
+        ProcessorControl started;
+        try {
+            started = new ProcessorControl(process, writer, startTimeout);
+        } catch (RuntimeException e) {
+            PowerShellProcesses.terminate(process, writer, 0, -1);
+            throw e;
+        }
+        if (isCancellable) {
+            writer.println(CommandLoop.start(isSeparateErrorStream));
+        }
+        Thread reader = new Thread(started, "ppowershell-control-reader-" + started.getPid());
+        reader.setDaemon(true);
+        reader.start();
+        if (errorReader != null) {
+            errorReader.setName("ppowershell-control-errors-" + started.getPid());
+        }
+        return new Started(process, writer, started, startedErrors);
+    }
+
+    //The commands are written to the started process from now on
+    private void use(Started started) {
+        this.p = started.process;
+        this.commandWriter = started.writer;
+        this.processor = started.processor;
+        this.errors = started.errors;
+        this.pid = started.processor.getPid();
+    }
+
+    //Replaces the process whose output could not be drained in time, the commands still pending on it fail.
+    //The replacement is started and answers the handshake outside the write lock, the commands keep failing fast meanwhile
+    private boolean recycle(ProcessorControl stale) {
+        if (closed || processor != stale) {
+            return false;
+        }
+        log.log(Level.WARNING, "PowerShell did not finish the output of a timed out command within {0} s, replacing it. PID: {1}",
+                new Object[]{drainTimeout, String.valueOf(stale.getPid())});
+        Started replacement;
+        try {
+            replacement = start();
+        } catch (RuntimeException e) {
+            log.log(Level.SEVERE, "Could not replace PowerShell, the session keeps draining", e);
+            return false;
+        }
+        Process staleProcess = null;
+        PrintWriter staleWriter = null;
+        long stalePid = -1;
+        synchronized (writeLock) {
+            //Closed or replaced while the replacement was starting
+            if (!closed && processor == stale) {
+                staleProcess = p;
+                staleWriter = commandWriter;
+                stalePid = pid;
+                use(replacement);
+                recycledOutputBytes += stale.getBytesRead();
+                //The functions cached in the stale process are gone with it
+                scriptCache.clear();
+                drained = CompletableFuture.completedFuture(null);
+                metrics.recordRecycle();
+            }
+        }
+        if (staleProcess == null) {
+            PowerShellProcesses.terminate(replacement.process, replacement.writer, 0, replacement.processor.getPid());
+            return false;
+        }
+        PowerShellProcesses.terminate(staleProcess, staleWriter, 0, stalePid);
+        return true;
+    }
+
+    //A process that has answered the startup handshake, with its reader threads running
+    private static final class Started {
+        private final Process process;
+        private final PrintWriter writer;
+        private final ProcessorControl processor;
+        private final ProcessorError errors;
+
+        private Started(Process process, PrintWriter writer, ProcessorControl processor, ProcessorError errors) {
+            this.process = process;
+            this.writer = writer;
+            this.processor = processor;
+            this.errors = errors;
+        }
+    }
+
+    //The output of the timed out command is read and discarded in the background, the next commands wait for it
+    private void startDraining(CompletableFuture<PSResponse> response) {
+        ProcessorControl current = processor;
+        CompletableFuture<Void> read = current.outputRead(response);
+        if (read.isDone()) {
+            return;
+        }
+        synchronized (writeLock) {
+            drained = CompletableFuture.allOf(drained, read);
+        }
+        if (drainTimeout >= 0) {
+            DRAIN_CHECKER.schedule(() -> {
+                if (!read.isDone()) {
+                    PowerShellStartup.openAsync(() -> recycle(current));
+                }
+            }, drainTimeout, TimeUnit.SECONDS);
+        }
+    }
+
+    //Null once the session has drained, otherwise the response to return without sending the command
+    private PSResponse awaitDrained(long deadline) {
+        CompletableFuture<Void> current = drained;
+        if (current.isDone()) {
+            return null;
+        }
+        try {
+            current.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            return null;
+        } catch (InterruptedException e) {
+            log.warning("Interrupt blocking ! Restore interrupted state");
+            Thread.currentThread().interrupt();
+            return new PSResponse(true, "Interrupt blocking ! Restore interrupted state");
+        } catch (ExecutionException e) {
+            return null;
+        } catch (TimeoutException e) {
+            return new PSResponse(true);
+        }
     }
 
     private PSResponse singleCommand(String command) {
-        return executeCommand(command, "", false);
+        return executeCommand(() -> command, "", false, null);
     }
 
-    private PSResponse executeCommand(String command, String identity, boolean iScriptMode) {
+    //The command is built when it is written, so that the script cache sees the commands in writing order
+    private PSResponse executeCommand(Supplier<String> command, String identity, boolean iScriptMode, Consumer<CharSequence> lineSink) {
         checkState();
-        PSResponse commandOutput;
-        long commandStart = System.currentTimeMillis();
-        if (isAddLock) {
-            try {
-                if (!lock.tryLock(tryLockTime, TimeUnit.SECONDS)) {
-                    return new PSResponse(true, "no lock obtained");
-                }
-            } catch (InterruptedException e) {
-                log.warning("Interrupt blocking ! Restore interrupted state");
-                Thread.currentThread().interrupt();
-                return new PSResponse(true, "Interrupt blocking ! Restore interrupted state");
+        if (!iScriptMode) {
+            identity = "command_" + commandSequence.incrementAndGet();
+        }
+        PSResponse notDrained = awaitDrained(System.nanoTime() + TimeUnit.SECONDS.toNanos(maxWaitTime));
+        if (notDrained != null) {
+            return notDrained;
+        }
+        //maxWaitTime is counted from the write, the waits for the drain and the lock are bounded on their own
+        if (isPipelined) {
+            return await(submit(command, identity, iScriptMode, lineSink));
+        }
+        if (!isAddLock) {
+            return await(send(command, identity, iScriptMode, lineSink, 0));
+        }
+        //The lock covers the whole round trip, the reader thread still owns the output
+        long lockWait = System.nanoTime();
+        try {
+            if (!lock.tryLock(tryLockTime, TimeUnit.SECONDS)) {
+                metrics.recordLockRejected();
+                return new PSResponse(true, "no lock obtained");
             }
-            commandOutput = execute(command, identity, iScriptMode);
+        } catch (InterruptedException e) {
+            log.warning("Interrupt blocking ! Restore interrupted state");
+            Thread.currentThread().interrupt();
+            return new PSResponse(true, "Interrupt blocking ! Restore interrupted state");
+        }
+        lockWait = System.nanoTime() - lockWait;
+        metrics.recordLockWait(lockWait);
+        try {
+            return await(send(command, identity, iScriptMode, lineSink, lockWait));
+        } finally {
             lock.unlock();
-        } else {
-            commandOutput = execute(command, identity, iScriptMode);
         }
+    }
 
-        long commandEnd = System.currentTimeMillis();
-        log.log(Level.INFO, "execution time is {0} ms", commandEnd - commandStart);
-        return commandOutput;
+    //Pipelined mode: the lock only covers registering and writing the command
+    private CompletableFuture<PSResponse> submit(Supplier<String> command, String identity, boolean iScriptMode, Consumer<CharSequence> lineSink) {
+        long lockWait = System.nanoTime();
+        try {
+            if (!lock.tryLock(tryLockTime, TimeUnit.SECONDS)) {
+                metrics.recordLockRejected();
+                return CompletableFuture.completedFuture(new PSResponse(true, "no lock obtained"));
+            }
+        } catch (InterruptedException e) {
+            log.warning("Interrupt blocking ! Restore interrupted state");
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(new PSResponse(true, "Interrupt blocking ! Restore interrupted state"));
+        }
+        lockWait = System.nanoTime() - lockWait;
+        metrics.recordLockWait(lockWait);
+        try {
+            return send(command, identity, iScriptMode, lineSink, lockWait);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private PSResponse execute(String command, String identity, boolean iScriptMode) {
+    //Registering and writing are atomic, so that the reader thread sees the commands in writing order
+    private CompletableFuture<PSResponse> send(Supplier<String> command, String identity, boolean iScriptMode, Consumer<CharSequence> lineSink, long lockWait) {
+        CompletableFuture<PSResponse> response;
+        long writeStart = System.nanoTime();
+        synchronized (writeLock) {
+            String line = command.get();
+            response = processor.register(identity, lineSink, errors == null ? null : errors.register(identity));
+            if (isCancellable) {
+                //A cancelled response completes at once, the command has ended once its output is read
+                String written = identity;
+                processor.outputRead(response).whenComplete((r, e) -> runningScripts.remove(written));
+            }
+            if (isCancellable) {
+                //The command loop runs one line per command
+                commandWriter.println(CommandLoop.command(identity, iScriptMode ? line : InlineScript.frame(new String[0], line, END_SCRIPT_STRING, identity)));
+            } else {
+                commandWriter.println(line);
+            }
+            //A single command has no trailer of its own, so the end marker and its identity are written after it
+            if (!iScriptMode && !isCancellable) {
+                if (isSeparateErrorStream) {
+                    commandWriter.println(ProcessorError.trailer(identity));
+                }
+                commandWriter.println(DOUBLE_QUOTE + END_SCRIPT_STRING + DOUBLE_QUOTE);
+                commandWriter.println(DOUBLE_QUOTE + identity + DOUBLE_QUOTE);
+            }
+        }
+        long writeEnd = System.nanoTime();
+        //A response cancelled by await is a timeout
+        response.whenComplete((r, e) -> metrics.recordCommand(lockWait, writeEnd - writeStart, System.nanoTime() - writeEnd,
+                r == null || r.getOutPut() == null ? 0 : r.getOutPut().length(), e != null, r != null && r.isError()));
+        return response;
+    }
+
+    private PSResponse await(CompletableFuture<PSResponse> response) {
+        long commandStart = System.currentTimeMillis();
         try {
-            commandWriter.println(command);
-            String commandOutput = CompletableFuture.supplyAsync(() -> iScriptMode ? this.processor.process(identity) : this.processor.process()).get(maxWaitTime, TimeUnit.SECONDS);
-            return new PSResponse(commandOutput);
+            return response.get(maxWaitTime, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             log.warning("Interrupt blocking ! Restore interrupted state");
             Thread.currentThread().interrupt();
@@ -164,36 +455,51 @@ public final class PowerShellControl implements AutoCloseable {
             log.log(Level.WARNING, "Unexpected error when processing PowerShell command", e);
             return new PSResponse(true, "Unexpected error when processing PowerShell command");
         } catch (TimeoutException e) {
+            //Nobody waits for the output any more, a line sink must not receive it either
+            response.cancel(false);
+            if (isCancellable) {
+                cancel(processor.identityOf(response));
+            }
+            startDraining(response);
             return new PSResponse(true);
+        } finally {
+            if (logExecutionTime) {
+                log.log(Level.INFO, "execution time is {0} ms", System.currentTimeMillis() - commandStart);
+            }
         }
     }
 
+    //Measures of the commands of this session, also published through JMX if metricsJmx is true
+    public PowerShellMetrics getMetrics() {
+        return metrics;
+    }
+
+    //Identifier of the PowerShell process, -1 if it could not be read
+    public long getPid() {
+        return pid;
+    }
+
     /**
      * Used to execute a single singleCommand only
-     * If there are multiple commands, only the output of the first singleCommand is output
+     * The output is read until the end marker written after the command
      *
      * @param singleCommand Atomic command
      * @return Command output
      */
     public static PSResponse executeSingleCommand(String singleCommand) {
         try (PowerShellControl process = PowerShellControl.openProcess()) {
-            return CompletableFuture.supplyAsync(() -> process.singleCommand(singleCommand)).get(process.maxWaitTime, TimeUnit.SECONDS);
+            return process.singleCommand(singleCommand);
         } catch (PowerShellException ex) {
             return new PSResponse(true, "PowerShell execute business exception");
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return new PSResponse(true, "PowerShell interrupt exception");
-        } catch (ExecutionException e) {
-            return new PSResponse(true, "PowerShell execute script exception");
-        } catch (TimeoutException e) {
-            return new PSResponse(true);
         }
     }
 
+    @Override
     public PSResponse executeScriptFile(String scriptPath) {
         return executeScriptFile(scriptPath, "");
     }
 
+    @Override
     public PSResponse executeScriptFile(String scriptPath, String params) {
         try (BufferedReader srcReader = new BufferedReader(new FileReader(scriptPath))) {
             return executeScriptText(srcReader.lines().collect(Collectors.joining(";")), params);
@@ -206,24 +512,175 @@ public final class PowerShellControl implements AutoCloseable {
         }
     }
 
+    @Override
     public PSResponse executeScriptText(String script) {
         return executeScriptText(script, "");
     }
 
+    @Override
     public PSResponse executeScriptText(String script, String params) {
+        return executeScriptText(script, params, null);
+    }
+
+    public PSResponse executeScriptText(String script, Consumer<CharSequence> lineSink) {
+        return executeScriptText(script, "", lineSink);
+    }
+
+    /**
+     * Stream the output to the sink line by line as it is read, instead of collecting it in the response.
+     * The sink is called on the reader thread of the session, a line is only valid during the call
+     *
+     * @param lineSink Receives the output lines, null to collect them in the response
+     * @return Response without output when streaming
+     */
+    public PSResponse executeScriptText(String script, String params, Consumer<CharSequence> lineSink) {
+        if (isPipelined) {
+            return await(executeScriptTextAsync(script, params, lineSink));
+        }
+        //Small scripts are sent in-band, without touching the file system, and cached in the session
+        if (InlineScript.fits(script, maxInlineScriptSize)) {
+            String identity = "psscript_" + commandSequence.incrementAndGet();
+            return executeCommand(inlineCommand(script, params, identity), identity, true, lineSink);
+        }
+
         //1. Create temporary file
         File tmpFile;
         try {
-            tmpFile = File.createTempFile("psscript_" + new Date().getTime(), ".ps1", this.tempFolder);
-            if (!tmpFile.exists()) {
-                return new PSResponse(true, "temporary is not exist");
-            }
+            tmpFile = createScriptFile(script);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unexpected error while writing temporary PowerShell script", e);
+            return new PSResponse(true, "Unexpected error while writing temporary PowerShell script");
+        }
+
+        //2. Write commands to the PowerShell process And Return process output
+        PSResponse psResponse = executeCommand(() -> tmpFile.getAbsolutePath() + " " + params, tmpFile.getName(), true, lineSink);
+
+        //3.delete tmpFile
+        deleteScriptFile(tmpFile);
+
+        return psResponse;
+    }
+
+    public CompletableFuture<PSResponse> executeScriptTextAsync(String script) {
+        return executeScriptTextAsync(script, "");
+    }
+
+    /**
+     * Pipelined mode only: write the script without waiting for the scripts written before it.
+     * A temporary file, used for scripts too large to be sent in-band, is deleted once the response is completed
+     *
+     * @return Completed with the script output, or with an error response if the script could not be written
+     */
+    public CompletableFuture<PSResponse> executeScriptTextAsync(String script, String params) {
+        return executeScriptTextAsync(script, params, null);
+    }
+
+    /**
+     * Pipelined mode only, streaming the output to the sink on the reader thread
+     *
+     * @see #executeScriptText(String, String, Consumer)
+     */
+    public CompletableFuture<PSResponse> executeScriptTextAsync(String script, String params, Consumer<CharSequence> lineSink) {
+        if (!isPipelined) {
+            throw new IllegalStateException("Asynchronous execution requires " + IS_PIPELINED + "=true");
+        }
+        return call(script, params, lineSink).getResponse();
+    }
+
+    public PowerShellCall startScriptText(String script) {
+        return startScriptText(script, "", null);
+    }
+
+    /**
+     * Cancellable mode only: write the script without waiting for it, like the pipelined mode, and return a call
+     * that stops the script when cancelled. The response is not bounded by maxWaitTime, the caller waits as long as it wants
+     *
+     * @see #executeScriptText(String, String, Consumer)
+     */
+    public PowerShellCall startScriptText(String script, String params, Consumer<CharSequence> lineSink) {
+        if (!isCancellable) {
+            throw new IllegalStateException("Cancellation requires " + IS_CANCELLABLE + "=true");
+        }
+        return call(script, params, lineSink);
+    }
+
+    //The lock only covers writing the script
+    private PowerShellCall call(String script, String params, Consumer<CharSequence> lineSink) {
+        checkState();
+        if (InlineScript.fits(script, maxInlineScriptSize)) {
+            String identity = "psscript_" + commandSequence.incrementAndGet();
+            return new PowerShellCall(submit(inlineCommand(script, params, identity), identity, true, lineSink), () -> cancel(identity));
+        }
+        File tmpFile;
+        try {
+            tmpFile = createScriptFile(script);
         } catch (IOException e) {
-            log.log(Level.SEVERE, "Exception creating temporary file", e);
-            return new PSResponse(true, "Exception creating temporary file");
+            log.log(Level.WARNING, "Unexpected error while writing temporary PowerShell script", e);
+            return PowerShellCall.completed(new PSResponse(true, "Unexpected error while writing temporary PowerShell script"));
+        }
+        CompletableFuture<PSResponse> response = submit(() -> tmpFile.getAbsolutePath() + " " + params, tmpFile.getName(), true, lineSink);
+        response.whenComplete((r, e) -> deleteScriptFile(tmpFile));
+        return new PowerShellCall(response, () -> cancel(tmpFile.getName()));
+    }
+
+    //Cancellable mode: the command loop stops the command if it runs, or skips it if it has not started yet
+    private void cancel(String identity) {
+        if (identity == null || closed) {
+            return;
+        }
+        synchronized (writeLock) {
+            //A command skipped by the loop has not defined the function of its script
+            String script = runningScripts.remove(identity);
+            if (script != null) {
+                scriptCache.forget(script);
+            }
+            commandWriter.println(CommandLoop.cancel(identity));
         }
+    }
+
+    public PSResponse executeJson(String script, Consumer<Object> recordSink) {
+        return executeJson(script, "", recordSink);
+    }
+
+    /**
+     * Structured mode: every output object is converted to JSON by PowerShell and decoded as soon as its line is read,
+     * on the reader thread of the session
+     *
+     * @param recordSink Receives every decoded object as a Map, or a List, String, Long, Double, Boolean for other values
+     * @return Response without output, or an error response with the output lines that were not JSON
+     */
+    public PSResponse executeJson(String script, String params, Consumer<Object> recordSink) {
+        JsonRecords.Decoder decoder = new JsonRecords.Decoder(recordSink);
+        return decoder.complete(executeScriptText(JsonRecords.wrap(script), params, decoder));
+    }
 
-        //2. Writing scripts to temporary files
+    /**
+     * Structured mode binding every output object to the given type
+     *
+     * @see JsonRecords#bind(Object, Class)
+     */
+    public <T> PSResponse executeJson(String script, String params, Class<T> type, Consumer<? super T> recordSink) {
+        return executeJson(script, params, record -> recordSink.accept(JsonRecords.bind(record, type)));
+    }
+
+    private Supplier<String> inlineCommand(String script, String params, String identity) {
+        if (isCancellable) {
+            //The command loop writes the error trailer itself
+            return () -> {
+                runningScripts.put(identity, script);
+                return InlineScript.frame(new String[0], scriptCache.invocation(script, params), END_SCRIPT_STRING, identity);
+            };
+        }
+        if (!isSeparateErrorStream) {
+            return () -> InlineScript.frame(new String[0], scriptCache.invocation(script, params), END_SCRIPT_STRING, identity);
+        }
+        return () -> InlineScript.frameWithStatus(new String[0], scriptCache.invocation(script, params),
+                ProcessorError.trailer(identity), ProcessorError.failure(identity), END_SCRIPT_STRING, identity);
+    }
+
+    //Writes the script followed by the end marker and the file name as its identity
+    private File createScriptFile(String script) throws IOException {
+        File tmpFile = File.createTempFile("psscript_" + new Date().getTime(), ".ps1", this.tempFolder);
         try (BufferedReader srcReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(script.getBytes())));
              BufferedWriter tmpWriter = new BufferedWriter(new FileWriter(tmpFile))) {
             String line;
@@ -231,60 +688,58 @@ public final class PowerShellControl implements AutoCloseable {
                 tmpWriter.write(line);
                 tmpWriter.newLine();
             }
+            if (isSeparateErrorStream && !isCancellable) {
+                tmpWriter.write(ProcessorError.trailer(tmpFile.getName()));
+                tmpWriter.newLine();
+            }
             tmpWriter.write('"' + END_SCRIPT_STRING + '"');
             tmpWriter.newLine();
             tmpWriter.write('"' + tmpFile.getName() + '"');
         } catch (IOException e) {
-            log.log(Level.WARNING, "Unexpected error while writing temporary PowerShell script", e);
-            return new PSResponse(true, "Unexpected error while writing temporary PowerShell script");
+            deleteScriptFile(tmpFile);
+            throw e;
         }
+        return tmpFile;
+    }
 
-        //3. Write commands to the PowerShell process And Return process output
-        PSResponse psResponse = executeCommand(tmpFile.getAbsolutePath(), tmpFile.getName(), true);
-
-        //4.delete tmpFile
+    private void deleteScriptFile(File tmpFile) {
         if (!tmpFile.delete()) {
             log.warning("file delete failed");
         }
-
-        return psResponse;
     }
 
     @Override
     public void close() {
-        if (!this.closed) {
-            try {
-                commandWriter.println("exit");
-                if (this.pid > 0) {
-                    //If it can be closed, force kill the process
-                    log.log(Level.SEVERE, "Forcing PowerShell to close. PID: " + this.pid);
+        //Not while the process is being replaced
+        synchronized (writeLock) {
+            if (!this.closed) {
+                try {
+                    PowerShellProcesses.terminate(p, commandWriter, closeTimeout, pid);
+                } catch (Exception ex) {
+                    log.log(Level.SEVERE, "Unexpected error when when closing PowerShell", ex);
+                } finally {
+                    PowerShellProcesses.unregister(this);
+                    if (metrics != null) {
+                        metrics.unregister();
+                    }
                     try {
-                        if(IS_WINDOWS){
-                            Runtime.getRuntime().exec("taskkill.exe /PID " + pid + " /F /T");
-                        }else{
-                            Runtime.getRuntime().exec("kill -9 " + pid);
+                        if (p != null && p.isAlive()) {
+                            p.getInputStream().close();
                         }
-                        this.closed = true;
-                    } catch (IOException e) {
-                        log.log(Level.SEVERE, "Unexpected error while killing powershell process", e);
+                    } catch (IOException ex) {
+                        log.log(Level.SEVERE, "Unexpected error when when closing streams", ex);
                     }
+                    this.closed = true;
                 }
-            } catch (Exception ex) {
-                log.log(Level.SEVERE, "Unexpected error when when closing PowerShell", ex);
-            } finally {
-                commandWriter.close();
-                try {
-                    if (p.isAlive()) {
-                        p.getInputStream().close();
-                    }
-                } catch (IOException ex) {
-                    log.log(Level.SEVERE, "Unexpected error when when closing streams", ex);
-                }
-                this.closed = true;
             }
         }
     }
 
+    @Override
+    public boolean isAlive() {
+        return !this.closed && p.isAlive();
+    }
+
     //Checks if PowerShell have been already closed
     private void checkState() {
         if (this.closed) {
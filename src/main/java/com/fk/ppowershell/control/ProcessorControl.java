@@ -2,117 +2,159 @@ package com.fk.ppowershell.control;
 
 
 import com.fk.ppowershell.Constant;
+import com.fk.ppowershell.FrameReader;
+import com.fk.ppowershell.PSResponse;
 import com.fk.ppowershell.PowerShellException;
+import com.fk.ppowershell.PowerShellProcesses;
+import com.fk.ppowershell.PowerShellStartup;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-class ProcessorControl {
+class ProcessorControl implements Runnable {
     private static final Logger log = Logger.getLogger(ProcessorControl.class.getName());
-    private static final String CRLF = "\r\n";
-    private final PowerShellControl powerShell;
-    private final BufferedReader reader;
-
-    public ProcessorControl(PowerShellControl powerShell) {
-        this.powerShell = powerShell;
-        this.reader = new BufferedReader(new InputStreamReader(powerShell.p.getInputStream()));
-        this.powerShell.pid = getPID(reader);
+    private final FrameReader reader;
+    //PID of the process whose output is read
+    private final long pid;
+    private final byte[] endMarker;
+    //Commands written to the process and not yet completed, in writing order
+    private final ConcurrentLinkedQueue<PendingScript> pending = new ConcurrentLinkedQueue<>();
+
+    //Reads the output of the process, once it has answered the startup handshake
+    ProcessorControl(Process p, PrintWriter commandWriter, int startTimeout) {
+        this.reader = new FrameReader(p.getInputStream());
+        this.endMarker = reader.encode(Constant.END_SCRIPT_STRING);
+        long answered = PowerShellStartup.handshake(p, commandWriter, reader, startTimeout);
+        this.pid = PowerShellProcesses.pid(p, answered);
     }
 
-    //Use Powershell command '$PID' in order to recover the process identifier
-    private int getPID(BufferedReader reader) {
-        powerShell.commandWriter.println("$pid");
-        try {
-            String commandOutput = reader.readLine().replaceAll("\\D", "");
-            if ("65001".equals(commandOutput) || "936".equals(commandOutput) || "437".equals(commandOutput))
-                commandOutput = reader.readLine().replaceAll("\\D", "");
-            if (!commandOutput.isEmpty()) {
-                return Integer.parseInt(commandOutput);
+    long getPid() {
+        return pid;
+    }
+
+    long getBytesRead() {
+        return reader.getBytesRead();
+    }
+
+    private static String readLine(FrameReader reader) throws IOException {
+        return reader.nextLine() ? reader.line() : "";
+    }
+
+    CompletableFuture<PSResponse> register(String identity, Consumer<CharSequence> lineSink) {
+        return register(identity, lineSink, null);
+    }
+
+    /**
+     * Must be called before the command is written, so that the queue order is the writing order
+     *
+     * @param errors Error output of the command read from the separate error stream, null if it is merged into the output
+     */
+    CompletableFuture<PSResponse> register(String identity, Consumer<CharSequence> lineSink, CompletableFuture<ProcessorError.Errors> errors) {
+        PendingScript script = new PendingScript(identity, lineSink, errors);
+        pending.add(script);
+        return script.response;
+    }
+
+    //Identity of the command still pending, null if its output has already been read
+    String identityOf(CompletableFuture<PSResponse> response) {
+        for (PendingScript script : pending) {
+            if (script.response == response) {
+                return script.identity;
             }
-        } catch (IOException e) {
-            throw new PowerShellException("", e);
         }
-        return -1;
+        return null;
     }
 
-    public String process() {
-        try {
-            waitingToReadData();
-            return readData(false, null);
-        } catch (IOException ioe) {
-            log.log(Level.SEVERE, "Unexpected error reading PowerShell output", ioe);
-            return ioe.getMessage();
+    /**
+     * @param response Returned by register
+     * @return Completed once the output of the command has been read up to its trailer, or the output is closed
+     */
+    CompletableFuture<Void> outputRead(CompletableFuture<PSResponse> response) {
+        for (PendingScript script : pending) {
+            if (script.response == response) {
+                return script.read;
+            }
         }
+        return CompletableFuture.completedFuture(null);
     }
 
-    public String process(String identify) {
+    //Read the output of every command and complete them in the order they were written.
+    //The commands which timed out are still completed here, nobody waits for them any more
+    @Override
+    public void run() {
         try {
-            waitingToReadData();
-            return readData(true, identify);
-        } catch (IOException ioe) {
-            log.log(Level.SEVERE, "Unexpected error reading PowerShell output", ioe);
-            return ioe.getMessage();
+            while (this.reader.nextLine()) {
+                if (!this.reader.lineEquals(endMarker)) {
+                    handleLine(pending.peek());
+                    continue;
+                }
+                String identity = readLine(this.reader);
+                complete(identity, this.reader.takePayload());
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unexpected error reading PowerShell output", e);
+        }
+        PendingScript script;
+        while ((script = pending.poll()) != null) {
+            script.response.complete(new PSResponse(true, "PowerShell output is closed"));
+            script.read.complete(null);
         }
     }
 
-    //Reads all data from output
-    private String readData(boolean iScriptMode, String identify) throws IOException {
-        StringBuilder powerShellOutput = new StringBuilder();
-        String line;
-        if (iScriptMode) {
-            while (null != (line = this.reader.readLine())) {
-                if (line.equals(Constant.END_SCRIPT_STRING)) {
-                    if (!identify.equals(this.reader.readLine())) {
-                        powerShellOutput = new StringBuilder();
-                        continue;
-                    }
-                    break;
-                }
-                powerShellOutput.append(line).append(CRLF);
-            }
-        } else {
-            while (null != (line = this.reader.readLine())) {
-                powerShellOutput.append(line).append(CRLF);
-                if (!canContinueReading()) {
-                    break;
-                }
+    //The output before the next trailer belongs to the oldest pending command
+    private void handleLine(PendingScript current) {
+        if (current == null || current.lineSink == null) {
+            this.reader.keepLine();
+        } else if (!current.response.isDone()) {
+            try {
+                current.lineSink.accept(this.reader.lineView());
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Line sink failed, the remaining output is discarded", e);
+                current.response.complete(new PSResponse(true, "Line sink failed: " + e.getMessage()));
             }
         }
-        return powerShellOutput.toString().replaceAll("\\s+$", "");
     }
 
-    private boolean canContinueReading() {
-        //If the reader is not ready, gives it some milliseconds
-        //It is important to do that, because the ready method guarantees that the readline will not be blocking
-        try {
-            if (this.reader.ready()) {
-                return true;
-            }
-            Thread.sleep(5);
-            //If not ready yet, wait a moment to make sure it is finished
-            if (this.reader.ready()) {
-                return true;
+    private void complete(String identity, String output) {
+        if (pending.stream().noneMatch(script -> script.identity.equals(identity))) {
+            log.log(Level.WARNING, "Discard the output of unknown script {0}", identity);
+            return;
+        }
+        //Scripts written earlier that never reached their trailer, e.g. stopped by a terminating error
+        PendingScript script;
+        while ((script = pending.poll()) != null) {
+            script.read.complete(null);
+            if (script.identity.equals(identity)) {
+                if (script.errors == null) {
+                    script.response.complete(new PSResponse(output));
+                } else {
+                    //The error trailer is written first but may be read after the output trailer
+                    CompletableFuture<PSResponse> response = script.response;
+                    script.errors.thenAccept(errors -> response.complete(new PSResponse(output, errors.text, errors.status, errors.exitCode)));
+                }
+                return;
             }
-            Thread.sleep(50);
-            return this.reader.ready();
-        } catch (IOException e) {
-            log.log(Level.SEVERE, "", e);
-        } catch (InterruptedException e) {
-            log.log(Level.SEVERE, "", e);
-            Thread.currentThread().interrupt();
+            script.response.complete(new PSResponse(true, "Script ended without end marker"));
         }
-        return false;
     }
 
-    private void waitingToReadData() throws IOException {
-        try {
-            while (!this.reader.ready()) Thread.sleep(50);
-        } catch (InterruptedException ex) {
-            log.warning("Interrupt blocking ! , Restore interrupted state");
-            Thread.currentThread().interrupt();
+    private static final class PendingScript {
+        private final String identity;
+        private final Consumer<CharSequence> lineSink;
+        private final CompletableFuture<ProcessorError.Errors> errors;
+        private final CompletableFuture<PSResponse> response = new CompletableFuture<>();
+        //Completed at the trailer even if the response was cancelled by a timeout
+        private final CompletableFuture<Void> read = new CompletableFuture<>();
+
+        private PendingScript(String identity, Consumer<CharSequence> lineSink, CompletableFuture<ProcessorError.Errors> errors) {
+            this.identity = identity;
+            this.lineSink = lineSink;
+            this.errors = errors;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,157 @@
+package com.fk.ppowershell.control;
+
+
+import com.fk.ppowershell.Constant;
+import com.fk.ppowershell.FrameReader;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ Reads the error stream of the process when it is not merged into the output, from the start of the process,
+ so that it never fills the pipe and stalls PowerShell. Every command writes a trailer line to the error stream,
+ the marker, its identity, $? and $LASTEXITCODE, the error lines before it belong to the command.
+ At most maxErrorSize characters are kept per command, the lines beyond are counted and discarded
+ */
+class ProcessorError implements Runnable {
+    private static final Logger log = Logger.getLogger(ProcessorError.class.getName());
+    private final FrameReader reader;
+    private final byte[] endMarker;
+    private final int maxErrorSize;
+    //Commands written to the process whose error trailer has not been read yet, in writing order
+    private final ConcurrentLinkedQueue<PendingErrors> pending = new ConcurrentLinkedQueue<>();
+
+    ProcessorError(Process p, int maxErrorSize) {
+        this.reader = new FrameReader(p.getErrorStream());
+        this.endMarker = reader.encode(Constant.END_ERROR_STRING + " ");
+        this.maxErrorSize = maxErrorSize;
+    }
+
+    /**
+     * The statement writing the trailer, it must run right after the script, while $? is still its status
+     */
+    static String trailer(String identity) {
+        return trailer(identity, "$?");
+    }
+
+    //Run instead of the trailer when the script stops with a terminating error, PowerShell would report it after the trailer
+    static String failure(String identity) {
+        return "[Console]::Error.WriteLine(($_ | Out-String).TrimEnd()); " + trailer(identity, "False");
+    }
+
+    private static String trailer(String identity, String status) {
+        return "[Console]::Error.WriteLine(\"" + Constant.END_ERROR_STRING + " " + identity + " " + status + " $LASTEXITCODE\")";
+    }
+
+    //Must be called before the command is written, so that the queue order is the writing order
+    CompletableFuture<Errors> register(String identity) {
+        PendingErrors errors = new PendingErrors(identity);
+        pending.add(errors);
+        return errors.result;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (this.reader.nextLine()) {
+                if (!this.reader.lineStartsWith(endMarker)) {
+                    handleLine(pending.peek());
+                    continue;
+                }
+                //identity status exitCode, the exit code is empty if no native program has run
+                String[] trailer = this.reader.line().substring(Constant.END_ERROR_STRING.length() + 1).split(" ", 3);
+                complete(trailer[0], trailer.length > 1 ? Boolean.valueOf("True".equalsIgnoreCase(trailer[1])) : null,
+                        trailer.length > 2 ? exitCode(trailer[2]) : null);
+                this.reader.discardPayload();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unexpected error reading PowerShell error output", e);
+        }
+        PendingErrors errors;
+        while ((errors = pending.poll()) != null) {
+            errors.result.complete(errors.take(null, null));
+        }
+    }
+
+    private void handleLine(PendingErrors current) {
+        if (current == null) {
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "Discard the error output of no script: {0}", this.reader.line());
+            }
+            return;
+        }
+        int room = maxErrorSize - current.text.length();
+        if (room <= 0) {
+            current.discardedLines++;
+            return;
+        }
+        String line = this.reader.line();
+        if (line.length() > room) {
+            current.discardedLines++;
+            line = line.substring(0, room);
+        }
+        current.text.append(line).append("\r\n");
+    }
+
+    private void complete(String identity, Boolean status, Integer exitCode) {
+        if (pending.stream().noneMatch(errors -> errors.identity.equals(identity))) {
+            log.log(Level.WARNING, "Discard the error output of unknown script {0}", identity);
+            return;
+        }
+        //Scripts written earlier that never reached their trailer, their status is unknown
+        PendingErrors errors;
+        while ((errors = pending.poll()) != null) {
+            if (errors.identity.equals(identity)) {
+                errors.result.complete(errors.take(status, exitCode));
+                return;
+            }
+            errors.result.complete(errors.take(null, null));
+        }
+    }
+
+    private static Integer exitCode(String value) {
+        try {
+            return value.trim().isEmpty() ? null : Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    //The error output of a command, with its status
+    static final class Errors {
+        final String text;
+        final Boolean status;
+        final Integer exitCode;
+
+        private Errors(String text, Boolean status, Integer exitCode) {
+            this.text = text;
+            this.status = status;
+            this.exitCode = exitCode;
+        }
+    }
+
+    private static final class PendingErrors {
+        private final String identity;
+        private final StringBuilder text = new StringBuilder();
+        private final CompletableFuture<Errors> result = new CompletableFuture<>();
+        private int discardedLines = 0;
+
+        private PendingErrors(String identity) {
+            this.identity = identity;
+        }
+
+        private Errors take(Boolean status, Integer exitCode) {
+            if (discardedLines > 0) {
+                text.append("... ").append(discardedLines).append(" error lines truncated or discarded beyond maxErrorSize");
+            }
+            int end = text.length();
+            while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+                end--;
+            }
+            return new Errors(text.substring(0, end), status, exitCode);
+        }
+    }
+}
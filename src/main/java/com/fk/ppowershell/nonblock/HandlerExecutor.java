@@ -0,0 +1,109 @@
+package com.fk.ppowershell.nonblock;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ Runs the output handlers when isAsync is true, instead of the common pool.
+ Every operation key is hashed to one single-thread lane, so the outputs of a key are handled in order,
+ and every lane has a bounded queue, so a slow handler cannot make the pending outputs grow without limit
+ */
+final class HandlerExecutor {
+    private static final Logger log = Logger.getLogger(HandlerExecutor.class.getName());
+    private final ThreadPoolExecutor[] lanes;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * What to do with an output when the queue of its lane is full
+     */
+    enum RejectPolicy {
+        //Handle it on the reader thread, it may then run before the queued outputs of the same key
+        CALLER_RUNS,
+        //Stop reading the PowerShell output until the lane has room, the order is kept
+        BLOCK,
+        //Discard it and count it, see PowerShellNonblocking#getDroppedOutputCount
+        DROP
+    }
+
+    HandlerExecutor(int threads, int queueSize, RejectPolicy policy, long pid) {
+        this.lanes = new ThreadPoolExecutor[Math.max(1, threads)];
+        for (int i = 0; i < lanes.length; i++) {
+            String name = "ppowershell-nonblock-handler-" + pid + "-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }, rejectHandler(policy));
+        }
+    }
+
+    void execute(String operationKey, Runnable handler) {
+        int lane = operationKey == null ? 0 : (operationKey.hashCode() & Integer.MAX_VALUE) % lanes.length;
+        try {
+            lanes[lane].execute(() -> {
+                try {
+                    handler.run();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Unexpected error while handling PowerShell output", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.log(Level.WARNING, "Handler executor is shut down, output of [{0}] is discarded", operationKey);
+        }
+    }
+
+    //Outputs waiting in the lane queues
+    long getBacklog() {
+        long backlog = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            backlog += lane.getQueue().size();
+        }
+        return backlog;
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    //Lets the queued outputs be handled, but accepts no more
+    void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    private RejectedExecutionHandler rejectHandler(RejectPolicy policy) {
+        switch (policy) {
+            case CALLER_RUNS:
+                return new ThreadPoolExecutor.CallerRunsPolicy();
+            case DROP:
+                return (r, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException();
+                    }
+                    dropped.incrementAndGet();
+                    log.warning("Handler queue is full, PowerShell output is dropped");
+                };
+            case BLOCK:
+            default:
+                return (r, executor) -> {
+                    try {
+                        while (!executor.isShutdown()) {
+                            if (executor.getQueue().offer(r, 1, TimeUnit.SECONDS)) {
+                                return;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new RejectedExecutionException();
+                };
+        }
+    }
+}
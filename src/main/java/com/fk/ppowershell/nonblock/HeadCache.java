@@ -0,0 +1,107 @@
+package com.fk.ppowershell.nonblock;
+
+import com.fk.ppowershell.PSResponse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ Script heads keyed by script identity, added by any business thread and removed by the reader thread
+ when the script output ends, together with the future of a submitted script.
+ Heads whose output never arrives are removed after the expire time, together with their temporary script file
+ */
+class HeadCache {
+    private static final Logger log = Logger.getLogger(HeadCache.class.getName());
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final long expireMillis;
+    private final AtomicLong nextSweep;
+
+    HeadCache(long expireTime, TimeUnit unit) {
+        this.expireMillis = unit.toMillis(expireTime);
+        this.nextSweep = new AtomicLong(System.currentTimeMillis() + expireMillis);
+    }
+
+    void put(String identify, Map<String, String> head) {
+        put(identify, head, null);
+    }
+
+    void put(String identify, Map<String, String> head, CompletableFuture<PSResponse> response) {
+        entries.put(identify, new Entry(head, response));
+        sweepIfDue();
+    }
+
+    Map<String, String> get(String identify) {
+        Entry entry = entries.get(identify);
+        return entry == null ? null : entry.head;
+    }
+
+    Entry remove(String identify) {
+        Entry entry = entries.remove(identify);
+        sweepIfDue();
+        return entry;
+    }
+
+    //The process is gone, no pending output will arrive
+    void failAll(String reason) {
+        for (String identify : entries.keySet()) {
+            Entry entry = entries.remove(identify);
+            if (entry != null && entry.response != null) {
+                entry.response.complete(new PSResponse(true, reason));
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    //At most one thread sweeps, every half expire time
+    private void sweepIfDue() {
+        long now = System.currentTimeMillis();
+        long due = nextSweep.get();
+        if (now < due || !nextSweep.compareAndSet(due, now + expireMillis / 2)) {
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> orphan = it.next();
+            if (orphan.getValue().createdAt + expireMillis > now || !entries.remove(orphan.getKey(), orphan.getValue())) {
+                continue;
+            }
+            log.log(Level.WARNING, "No output received for script {0}, its head expired", orphan.getKey());
+            if (orphan.getValue().response != null) {
+                orphan.getValue().response.complete(new PSResponse(true, "No output received for script " + orphan.getKey()));
+            }
+            String filePath = orphan.getValue().head.get(orphan.getKey());
+            if (filePath != null && !filePath.isEmpty()) {
+                try {
+                    Files.deleteIfExists(Paths.get(filePath));
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Failed to delete file {0}", filePath);
+                }
+            }
+        }
+    }
+
+    static final class Entry {
+        final Map<String, String> head;
+        //Null unless the script was submitted
+        final CompletableFuture<PSResponse> response;
+        private final long createdAt = System.currentTimeMillis();
+        final long sentAt = System.nanoTime();
+
+        private Entry(Map<String, String> head, CompletableFuture<PSResponse> response) {
+            this.head = head;
+            this.response = response;
+        }
+    }
+}
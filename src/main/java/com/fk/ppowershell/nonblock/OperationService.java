@@ -12,10 +12,30 @@ public interface OperationService {
 
     void process(Map<String, String> head, String output);
 
+    /**
+     * A streaming service receives the output line by line through {@link #processLine},
+     * then {@link #process} is called with an empty output once the script has ended
+     */
+    default boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Called on the reader thread in output order, whatever isAsync is.
+     * The line is only valid during the call, use toString() to keep it
+     */
+    default void processLine(Map<String, String> head, CharSequence line) {
+    }
+
     static void defaultProcess(Map<String, String> head, String outPut) {
         log.log(Level.INFO, "head={0}\noutPut={1}", new Object[]{head, outPut});
     }
 
+    /**
+     * @deprecated With isAsync the output is handed to the bounded handler executor configured by handlerThreads,
+     * handlerQueueSize and handlerRejectPolicy. It is only called, instead of that executor, for a service that overrides it
+     */
+    @Deprecated
     default void processAsync(Map<String, String> head, String output) {
         CompletableFuture.runAsync(() -> process(head, output));
     }
@@ -1,19 +1,61 @@
 package com.fk.ppowershell.nonblock;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 public class OperationServiceManager {
+    private static final Logger log = Logger.getLogger(OperationServiceManager.class.getName());
+
     private OperationServiceManager() {
     }
 
     private static Map<String, OperationService> operationServices = new HashMap<>(10);
+    //Services with their own processAsync, which is still called for them with isAsync
+    private static final Set<OperationService> customAsync = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
 
     static Map<String, OperationService> getOperationImpl() {
         return operationServices;
     }
 
-    static void loadOperationServiceImpl(OperationService... services) {
-        for (OperationService service : services)
-            getOperationImpl().put(service.getOperationKey(), service);
+    static boolean hasCustomAsync(OperationService service) {
+        return customAsync.contains(service);
+    }
+
+    //The services that override it keep their own dispatch
+    @SuppressWarnings("deprecation")
+    static void processAsync(OperationService service, Map<String, String> head, String output) {
+        service.processAsync(head, output);
+    }
+
+    /**
+     * @param handlerExecutor The session hands the outputs to a handler executor, isAsync is true
+     */
+    static void loadOperationServiceImpl(boolean handlerExecutor, OperationService... services) {
+        for (OperationService service : services) {
+            OperationService replaced = getOperationImpl().put(service.getOperationKey(), service);
+            if (replaced != null) {
+                customAsync.remove(replaced);
+            }
+            if (overridesProcessAsync(service)) {
+                customAsync.add(service);
+            }
+            if (handlerExecutor && customAsync.contains(service)) {
+                log.log(Level.WARNING, "{0} overrides the deprecated processAsync, its outputs bypass the bounded handler executor",
+                        service.getClass().getName());
+            }
+        }
+    }
+
+    private static boolean overridesProcessAsync(OperationService service) {
+        try {
+            return service.getClass().getMethod("processAsync", Map.class, String.class).getDeclaringClass() != OperationService.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
     }
 }
\ No newline at end of file
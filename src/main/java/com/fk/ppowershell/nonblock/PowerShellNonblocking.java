@@ -1,14 +1,27 @@
 package com.fk.ppowershell.nonblock;
 
 import com.fk.ppowershell.Constant;
+import com.fk.ppowershell.InlineScript;
+import com.fk.ppowershell.PSResponse;
 import com.fk.ppowershell.PowerShellCodepage;
 import com.fk.ppowershell.PowerShellConfig;
 import com.fk.ppowershell.PowerShellException;
+import com.fk.ppowershell.PowerShellMetrics;
+import com.fk.ppowershell.PowerShellProcesses;
+import com.fk.ppowershell.PowerShellStartup;
+import com.fk.ppowershell.ScriptCache;
 
 import java.io.*;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -35,11 +48,26 @@ public final class PowerShellNonblocking implements AutoCloseable {
     //Writer to send commands
     PrintWriter commandWriter;
     //process state
-    private boolean closed = false;
+    private volatile boolean closed = false;
     //Config values
-    private Integer startProcessWaitTime = 1;
+    //Seconds the process has to answer the startup handshake
+    int startTimeout = 30;
+    //Seconds the process has to exit when closed before it is destroyed
+    private int closeTimeout = 2;
     private Boolean isAsync = false;
-    private final LinkedList<Map<String, String>> headCache = new LinkedList<>();
+    private Integer maxInlineScriptSize = 16384;
+    private Integer headExpireTime = 600;
+    private ScriptCache scriptCache = new ScriptCache(64);
+    private Integer handlerThreads = 2;
+    private Integer handlerQueueSize = 1024;
+    private HandlerExecutor.RejectPolicy handlerRejectPolicy = HandlerExecutor.RejectPolicy.BLOCK;
+    private HeadCache headCache;
+    private HandlerExecutor handlerExecutor;
+    private boolean metricsJmx = true;
+    private PowerShellMetrics metrics;
+    //Started on the first submit with a timeout
+    private ScheduledExecutorService timeoutScheduler;
+    private final AtomicLong scriptSequence = new AtomicLong();
     private File tempFolder;
 
     private PowerShellNonblocking() {
@@ -59,8 +87,22 @@ public final class PowerShellNonblocking implements AutoCloseable {
                     : getTempFolder(properties.getProperty(TEMP_FOLDER));
             this.isAsync = Boolean.parseBoolean(config.get(IS_ASYNC) != null ? config.get(IS_ASYNC)
                     : properties.getProperty(IS_ASYNC));
-            this.startProcessWaitTime = Integer.parseInt(config.get(START_PROCESS_WAIT_TIME) != null ? config.get(START_PROCESS_WAIT_TIME)
-                    : properties.getProperty(START_PROCESS_WAIT_TIME));
+            this.startTimeout = Integer.parseInt(config.get(START_TIMEOUT) != null ? config.get(START_TIMEOUT) : properties.getProperty(START_TIMEOUT));
+            this.closeTimeout = Integer.parseInt(config.get(CLOSE_TIMEOUT) != null ? config.get(CLOSE_TIMEOUT) : properties.getProperty(CLOSE_TIMEOUT));
+            this.maxInlineScriptSize = Integer.parseInt(config.get(MAX_INLINE_SCRIPT_SIZE) != null ? config.get(MAX_INLINE_SCRIPT_SIZE)
+                    : properties.getProperty(MAX_INLINE_SCRIPT_SIZE));
+            this.metricsJmx = Boolean.parseBoolean(config.get(METRICS_JMX) != null ? config.get(METRICS_JMX)
+                    : properties.getProperty(METRICS_JMX));
+            this.scriptCache = new ScriptCache(Integer.parseInt(config.get(SCRIPT_CACHE_SIZE) != null ? config.get(SCRIPT_CACHE_SIZE)
+                    : properties.getProperty(SCRIPT_CACHE_SIZE)));
+            this.headExpireTime = Integer.parseInt(config.get(HEAD_EXPIRE_TIME) != null ? config.get(HEAD_EXPIRE_TIME)
+                    : properties.getProperty(HEAD_EXPIRE_TIME));
+            this.handlerThreads = Integer.parseInt(config.get(HANDLER_THREADS) != null ? config.get(HANDLER_THREADS)
+                    : properties.getProperty(HANDLER_THREADS));
+            this.handlerQueueSize = Integer.parseInt(config.get(HANDLER_QUEUE_SIZE) != null ? config.get(HANDLER_QUEUE_SIZE)
+                    : properties.getProperty(HANDLER_QUEUE_SIZE));
+            this.handlerRejectPolicy = HandlerExecutor.RejectPolicy.valueOf((config.get(HANDLER_REJECT_POLICY) != null ? config.get(HANDLER_REJECT_POLICY)
+                    : properties.getProperty(HANDLER_REJECT_POLICY)).toUpperCase(Locale.ROOT));
         } catch (Exception e) {
             log.log(Level.WARNING, "Could not read configuration. Using default values . the reason is {0}", e.getMessage());
         }
@@ -82,14 +124,49 @@ public final class PowerShellNonblocking implements AutoCloseable {
      * @return PowerShell process
      */
     public static PowerShellNonblocking openProcess(String pSExecutablePath, Supplier<OperationService[]> supplier) throws IOException {
+        return openProcess(pSExecutablePath, supplier, null);
+    }
+
+    /**
+     * create a powershell process
+     *
+     * @param pSExecutablePath Different systems have different powershell execution path
+     * @param supplier         Specifies the implementation class that handles output support
+     * @param config           Overrides the values of pps.properties, e.g. the handler executor of isAsync, may be null
+     * @return PowerShell process
+     */
+    public static PowerShellNonblocking openProcess(String pSExecutablePath, Supplier<OperationService[]> supplier, Map<String, String> config) throws IOException {
         PowerShellNonblocking powerShellNonblocking = new PowerShellNonblocking();
-        powerShellNonblocking.configuration(null);
+        powerShellNonblocking.configuration(config);
         String executablePath = pSExecutablePath != null && pSExecutablePath.length() > 0 ? pSExecutablePath : IS_WINDOWS ? "powershell.exe" : "pwsh.exe";
-        PowerShellNonblocking initialize = powerShellNonblocking.initialize(executablePath);
-        OperationServiceManager.loadOperationServiceImpl(supplier.get());
+        PowerShellNonblocking initialize;
+        try {
+            initialize = powerShellNonblocking.initialize(executablePath);
+        } catch (RuntimeException e) {
+            //The process did not answer the startup handshake
+            powerShellNonblocking.close();
+            throw e;
+        }
+        OperationServiceManager.loadOperationServiceImpl(initialize.getHandlerExecutor() != null, supplier.get());
         return initialize;
     }
 
+    /**
+     * Open the process on a starter thread, the future completes once the process has answered the startup handshake.
+     * Call it several times at application startup to boot the processes in parallel
+     *
+     * @param config Overrides the values of pps.properties, may be null
+     */
+    public static CompletableFuture<PowerShellNonblocking> openProcessAsync(String pSExecutablePath, Supplier<OperationService[]> supplier, Map<String, String> config) {
+        return PowerShellStartup.openAsync(() -> {
+            try {
+                return openProcess(pSExecutablePath, supplier, config);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
     public static PowerShellNonblocking openProcess(String pSExecutablePath) throws IOException {
         return openProcess(pSExecutablePath, () -> new OperationService[]{});
     }
@@ -107,24 +184,38 @@ public final class PowerShellNonblocking implements AutoCloseable {
         pb.redirectErrorStream(true);
         try {
             p = pb.start();
-            if (p.waitFor(startProcessWaitTime, TimeUnit.SECONDS) && !p.isAlive()) {
-                throw new PowerShellException("Cannot execute PowerShell. Please make sure that it is installed in your system. Errorcode:" + p.exitValue());
-            }
-        } catch (IOException | InterruptedException ex) {
-            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
             throw new PowerShellException("Cannot execute PowerShell. Please make sure that it is installed in your system", ex);
         }
 
         this.commandWriter = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(p.getOutputStream())), true);
         //Start the powershell processor
-        new Thread(new ProcessorNonblocking(this, isAsync, headCache)).start();
-        //Get and store the PID of the process
+        this.headCache = new HeadCache(headExpireTime, TimeUnit.SECONDS);
+        ProcessorNonblocking processor = new ProcessorNonblocking(this, headCache);
+        if (isAsync) {
+            this.handlerExecutor = new HandlerExecutor(handlerThreads, handlerQueueSize, handlerRejectPolicy, pid);
+        }
+        this.metrics = new PowerShellMetrics("Nonblocking", String.valueOf(pid));
+        this.metrics.setOutputBytes(processor::getBytesRead);
+        this.metrics.setPid(() -> pid);
+        this.metrics.setHeadCacheDepth(headCache::size);
+        if (handlerExecutor != null) {
+            this.metrics.setHandlerBacklog(handlerExecutor::getBacklog);
+            this.metrics.setDroppedOutputs(handlerExecutor::getDroppedCount);
+        }
+        if (metricsJmx) {
+            this.metrics.register();
+        }
+        new Thread(processor).start();
+        PowerShellProcesses.register(this);
         return this;
     }
 
     private void executeCommand(String command) {
         checkState();
+        long writeStart = System.nanoTime();
         commandWriter.println(command);
+        metrics.recordWrite(System.nanoTime() - writeStart);
     }
 
     public void executeScript(String commandStr) {
@@ -132,15 +223,97 @@ public final class PowerShellNonblocking implements AutoCloseable {
     }
 
     public void executeScript(Map<String, String> head, String commandStr) {
+        sendScript(head, commandStr, null);
+    }
+
+    public CompletableFuture<PSResponse> submit(String commandStr) {
+        return submit(null, commandStr);
+    }
+
+    /**
+     * Execute a script and get its output through the returned future instead of an OperationService.
+     * If the head has an IMPL the output is also passed to that service.
+     * The future is completed on the reader thread, use the async variants of its methods for slow work
+     *
+     * @return Future completed with the output, or with an error response if the session is closed,
+     * the script could not be sent or the process ended
+     */
+    public CompletableFuture<PSResponse> submit(Map<String, String> head, String commandStr) {
+        CompletableFuture<PSResponse> response = new CompletableFuture<>();
+        try {
+            sendScript(head, commandStr, response);
+        } catch (IllegalStateException e) {
+            fail(response, e.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * @param timeout The future is completed with a timeout response if the output has not arrived by then,
+     *                the output arriving later is not passed to it
+     */
+    public CompletableFuture<PSResponse> submit(Map<String, String> head, String commandStr, long timeout, TimeUnit unit) {
+        long sentAt = System.nanoTime();
+        CompletableFuture<PSResponse> response = submit(head, commandStr);
+        if (!response.isDone()) {
+            ScheduledFuture<?> timer;
+            try {
+                timer = getTimeoutScheduler().schedule(() -> {
+                    if (response.complete(new PSResponse(true))) {
+                        metrics.recordCommand(0, -1, System.nanoTime() - sentAt, 0, true, false);
+                    }
+                }, timeout, unit);
+            } catch (IllegalStateException | RejectedExecutionException e) {
+                //Closed since the script was sent
+                fail(response, "PowerShell process is closed");
+                return response;
+            }
+            response.whenComplete((r, e) -> timer.cancel(false));
+        }
+        return response;
+    }
+
+    private synchronized ScheduledExecutorService getTimeoutScheduler() {
+        checkState();
+        if (timeoutScheduler == null) {
+            timeoutScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ppowershell-nonblock-timeout-" + pid);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timeoutScheduler;
+    }
+
+    private void sendScript(Map<String, String> head, String commandStr, CompletableFuture<PSResponse> response) {
+        checkState();
+        if (head == null) {
+            head = new HashMap<>();
+        }
+
+        //Small scripts are sent in-band and cached in the session, the identity maps to an empty path as there is no file to delete
+        if (InlineScript.fits(commandStr, maxInlineScriptSize)) {
+            String identify = "psscript_" + scriptSequence.incrementAndGet();
+            head.put(identify, "");
+            headCache.put(identify, head, response);
+            //The script cache must see the commands in writing order
+            synchronized (commandWriter) {
+                executeCommand(InlineScript.frame(new String[]{START_SCRIPT_STRING, identify}, scriptCache.invocation(commandStr, ""), END_SCRIPT_STRING, identify));
+            }
+            return;
+        }
+
         //1. Create temporary file
         File tmpFile;
         try {
             tmpFile = File.createTempFile("psscript_" + new Date().getTime(), ".ps1", this.tempFolder);
             if (!tmpFile.exists()) {
+                fail(response, "Temporary file was not created");
                 return;
             }
         } catch (IOException e) {
             log.log(Level.SEVERE, "Exception creating temporary file", e);
+            fail(response, "Exception creating temporary file");
             return;
         }
 
@@ -148,9 +321,6 @@ public final class PowerShellNonblocking implements AutoCloseable {
         //2. Put the temporary file absolute path in the header
         String absolutePath = tmpFile.getAbsolutePath();
         String identify = tmpFile.getName();
-        if (head == null) {
-            head = new HashMap<>();
-        }
         head.put(identify, absolutePath);
 
         //3. Writing scripts to temporary files
@@ -170,38 +340,67 @@ public final class PowerShellNonblocking implements AutoCloseable {
             tmpWriter.write(Constant.DOUBLE_QUOTE + identify + Constant.DOUBLE_QUOTE);
         } catch (IOException e) {
             log.log(Level.SEVERE, "Unexpected error while writing temporary PowerShell script", e);
+            fail(response, "Unexpected error while writing temporary PowerShell script");
             return;
         }
 
         //4. Cache the script header information and associate the file identify information
-        headCache.add(head);
+        headCache.put(identify, head, response);
 
         //5. Write commands to the PowerShell process
         executeCommand(absolutePath);
     }
 
+    private static void fail(CompletableFuture<PSResponse> response, String reason) {
+        if (response != null) {
+            response.complete(new PSResponse(true, reason));
+        }
+    }
+
+    //Measures of the scripts of this process, also published through JMX if metricsJmx is true
+    public PowerShellMetrics getMetrics() {
+        return metrics;
+    }
+
+    //Identifier of the PowerShell process, -1 if it could not be read
+    public long getPid() {
+        return pid;
+    }
+
+    HandlerExecutor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    //Outputs discarded because the handler queue was full, with handlerRejectPolicy=DROP
+    public long getDroppedOutputCount() {
+        return handlerExecutor == null ? 0 : handlerExecutor.getDroppedCount();
+    }
+
     @Override
     public void close() {
         if (!this.closed) {
             try {
-                commandWriter.println("exit");
-                if (this.pid > 0) {
-                    log.log(Level.INFO, "Forcing PowerShell to close. PID: {0}", this.pid);
-                    try {
-                        if(IS_WINDOWS){
-                            Runtime.getRuntime().exec("taskkill.exe /PID " + pid + " /F /T");
-                        }else{
-                            Runtime.getRuntime().exec("kill -9 " + pid);
-                        }
-                        this.closed = true;
-                    } catch (IOException e) {
-                        log.log(Level.SEVERE, "Unexpected error while killing powershell process", e);
+                PowerShellProcesses.terminate(p, commandWriter, closeTimeout, pid);
+            } catch (Exception ex) {
+                log.log(Level.SEVERE, "Unexpected error when when closing PowerShell", ex);
+            } finally {
+                PowerShellProcesses.unregister(this);
+                if (handlerExecutor != null) {
+                    handlerExecutor.shutdown();
+                }
+                synchronized (this) {
+                    if (timeoutScheduler != null) {
+                        timeoutScheduler.shutdownNow();
                     }
                 }
-            } finally {
-                commandWriter.close();
+                if (headCache != null) {
+                    headCache.failAll("PowerShell process is closed");
+                }
+                if (metrics != null) {
+                    metrics.unregister();
+                }
                 try {
-                    if (p.isAlive()) {
+                    if (p != null && p.isAlive()) {
                         p.getInputStream().close();
                     }
                 } catch (IOException ex) {
@@ -2,14 +2,15 @@ package com.fk.ppowershell.nonblock;
 
 
 import com.fk.ppowershell.Constant;
+import com.fk.ppowershell.FrameReader;
+import com.fk.ppowershell.PSResponse;
+import com.fk.ppowershell.PowerShellProcesses;
+import com.fk.ppowershell.PowerShellStartup;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.time.LocalDateTime;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,37 +19,37 @@ import static com.fk.ppowershell.Constant.IMPL;
 
 class ProcessorNonblocking implements Runnable {
     private static final Logger log = Logger.getLogger(ProcessorNonblocking.class.getName());
-    private static final String CRLF = "\r\n";
-    private final BufferedReader reader;
-    private final boolean isAsync;
-    private final LinkedList<Map<String, String>> headCache;
+    private final FrameReader reader;
+    private final byte[] startMarker;
+    private final byte[] endMarker;
+    private final HeadCache headCache;
     private int retryTimes;
     private LocalDateTime baseTime;
     private final PowerShellNonblocking powerShellNonblocking;
 
-    public ProcessorNonblocking(PowerShellNonblocking powerShellNonblocking, boolean isAsync, LinkedList<Map<String, String>> headCache) throws IOException {
-        this.isAsync = isAsync;
+    public ProcessorNonblocking(PowerShellNonblocking powerShellNonblocking, HeadCache headCache) throws IOException {
         this.headCache = headCache;
         this.powerShellNonblocking = powerShellNonblocking;
-        this.reader = new BufferedReader(new InputStreamReader(powerShellNonblocking.getP().getInputStream()));
-        powerShellNonblocking.pid = getPID(reader);
+        this.reader = new FrameReader(powerShellNonblocking.getP().getInputStream());
+        this.startMarker = reader.encode(Constant.START_SCRIPT_STRING);
+        this.endMarker = reader.encode(Constant.END_SCRIPT_STRING);
+        long answered = PowerShellStartup.handshake(powerShellNonblocking.getP(), powerShellNonblocking.commandWriter, reader, powerShellNonblocking.startTimeout);
+        powerShellNonblocking.pid = PowerShellProcesses.pid(powerShellNonblocking.getP(), answered);
     }
 
-    //Use Powershell command '$PID' in order to recover the process identifier
-    private int getPID(BufferedReader reader) throws IOException {
-        powerShellNonblocking.commandWriter.println("$pid");
-        String commandOutput = reader.readLine().replaceAll("\\D", "");
-        if ("65001".equals(commandOutput) || "936".equals(commandOutput) || "437".equals(commandOutput))
-            commandOutput = reader.readLine().replaceAll("\\D", "");
-        if (!commandOutput.isEmpty()) {
-            return Integer.parseInt(commandOutput);
-        }
-        return -1;
+    long getBytesRead() {
+        return reader.getBytesRead();
+    }
+
+    private static String readLine(FrameReader reader) throws IOException {
+        return reader.nextLine() ? reader.line() : "";
     }
 
     public void run() {
         try {
             readData();
+            //The process ended without being closed, no pending output will arrive
+            headCache.failAll("PowerShell output is closed");
         } catch (IOException e) {
             log.warning("Unexpected error reading PowerShell output , Process suicide ");
             powerShellNonblocking.close();
@@ -72,44 +73,75 @@ class ProcessorNonblocking implements Runnable {
     }
 
     private void readData() throws IOException {
-        String line;
-        while (null != (line = this.reader.readLine())) {
-            if (line.equals(Constant.START_SCRIPT_STRING)) {
-                String identify = this.reader.readLine();
-                StringBuilder body = new StringBuilder();
-                while (null != (line = this.reader.readLine())) {
-                    if (line.equals(Constant.END_SCRIPT_STRING)) {
-                        if (identify.equals(this.reader.readLine()))
-                            handCommandOutput(identify, body);
+        while (this.reader.nextLine()) {
+            if (this.reader.lineEquals(startMarker)) {
+                String identify = readLine(this.reader);
+                this.reader.discardPayload();
+                Map<String, String> streamingHead = findStreamingHead(identify);
+                while (this.reader.nextLine()) {
+                    if (this.reader.lineEquals(endMarker)) {
+                        if (identify.equals(readLine(this.reader)))
+                            handCommandOutput(identify, this.reader.takePayload());
                         break;
-                    } else
-                        body.append(line).append(CRLF);
+                    } else if (streamingHead != null)
+                        processLine(streamingHead, this.reader.lineView());
+                    else
+                        this.reader.keepLine();
                 }
             }
         }
     }
 
-    private void handCommandOutput(String identify, StringBuilder body) {
-        Map<String, String> head;
-        String filePath;
-        do {
-            head = headCache.pollFirst();
-            if (head == null) {
-                log.log(Level.WARNING, "[{}] is not in headCache !", identify);
-                return;
-            }
-            filePath = head.get(identify);
-        } while (filePath == null);
+    //The head of the script if its output is handled by a streaming service, otherwise null
+    private Map<String, String> findStreamingHead(String identify) {
+        Map<String, String> head = headCache.get(identify);
+        if (head == null) {
+            return null;
+        }
+        OperationService operationService = OperationServiceManager.getOperationImpl().get(head.get(IMPL));
+        return operationService != null && operationService.isStreaming() ? head : null;
+    }
 
-        deleteTmpFile(filePath);
+    private void processLine(Map<String, String> head, CharSequence line) {
+        try {
+            OperationServiceManager.getOperationImpl().get(head.get(IMPL)).processLine(head, line);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Unexpected error while streaming PowerShell output", e);
+        }
+    }
+
+    private void handCommandOutput(String identify, String body) {
+        HeadCache.Entry entry = headCache.remove(identify);
+        if (entry == null) {
+            log.log(Level.WARNING, "[{0}] is not in headCache !", identify);
+            return;
+        }
+        long executionNanos = System.nanoTime() - entry.sentAt;
+        Map<String, String> head = entry.head;
+        String filePath = head.get(identify);
 
-        OperationService operationService = OperationServiceManager.getOperationImpl().get(head.remove(IMPL));
+        if (!filePath.isEmpty()) {
+            deleteTmpFile(filePath);
+        }
+
+        String operationKey = head.remove(IMPL);
+        OperationService operationService = OperationServiceManager.getOperationImpl().get(operationKey);
+        HandlerExecutor handlerExecutor = powerShellNonblocking.getHandlerExecutor();
+        PSResponse response = new PSResponse(body);
+        //The timer recorded the command as timed out when it completed the future first, its late output is not counted again
+        if (entry.response == null || entry.response.complete(response)) {
+            powerShellNonblocking.getMetrics().recordCommand(0, -1, executionNanos, body.length(), response.isTimeout(), response.isError());
+        }
         if (operationService == null) {
-            OperationService.defaultProcess(head, body.toString());
-        } else if (isAsync) {
-            operationService.processAsync(head, body.toString());
+            if (entry.response == null) {
+                OperationService.defaultProcess(head, body);
+            }
+        } else if (handlerExecutor != null && OperationServiceManager.hasCustomAsync(operationService)) {
+            OperationServiceManager.processAsync(operationService, head, body);
+        } else if (handlerExecutor != null) {
+            handlerExecutor.execute(operationKey, () -> operationService.process(head, body));
         } else {
-            operationService.process(head, body.toString());
+            operationService.process(head, body);
         }
     }
 